@@ -0,0 +1,121 @@
+import java.util.stream.IntStream;
+
+public class BatchClassifier implements MNIST_GUI.Classifier {
+
+    // KNN for many queries at once.  Classifying one image streams the whole
+    // training set (47 MB) through the caches, so doing that per query is
+    // memory bound.  Here the queries are taken in blocks and the training
+    // set in tiles small enough to stay in L2: every query of a block is
+    // compared against a tile before moving on to the next tile, so each
+    // training byte is fetched from memory once per query block instead of
+    // once per query.  Query blocks run in parallel; when there are fewer
+    // blocks than cores the training set is also split into shards, as in
+    // ParallelClassifier.
+    //
+    // Every query keeps its own Neighbors per shard and Neighbors breaks
+    // ties by index, so the merged results are exactly those of Main.smallest.
+    // With -Ddistance=dot each query is prepared as a SparseQuery once per
+    // block rather than once per tile.
+
+    private static final int QUERIES = 32; // queries per block
+    private static final int TILE = 256;   // training images per tile (200 KB for 28 x 28)
+
+    private final Dataset dataset;
+    private final int size;
+    private final int queries;
+    private final int tile;
+
+    public BatchClassifier(Dataset dataset, int size) {
+        this(dataset, size, QUERIES, TILE);
+    }
+
+    public BatchClassifier(Dataset dataset, int size, int queries, int tile) {
+        if (queries <= 0) {
+            throw new IllegalArgumentException("Queries: " + queries);
+        }
+        if (tile <= 0) {
+            throw new IllegalArgumentException("Tile: " + tile);
+        }
+        this.dataset = dataset;
+        this.size = size;
+        this.queries = queries;
+        this.tile = tile;
+    }
+
+    public Dataset dataset() {
+        return this.dataset;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Neighbors[] nearest(Image[] images) {
+        byte[][] queries = new byte[images.length][];
+        for (int i = 0; i < images.length; i++) {
+            queries[i] = images[i].flatten();
+        }
+        return this.nearest(queries);
+    }
+
+    public Neighbors[] nearest(byte[][] queries) {
+        // Queries are row-major pixel arrays, like Image.flatten()
+        int count = this.dataset.count();
+        int blocks = (queries.length + this.queries - 1) / this.queries;
+        // Too few blocks to keep every core busy (one small batch): split the
+        // training set into shards as well and merge their neighbors
+        int processors = Runtime.getRuntime().availableProcessors();
+        int shards = Math.max(1, Math.min((count + this.tile - 1) / this.tile, (processors + blocks - 1) / blocks));
+        Neighbors[][] partial = new Neighbors[shards][queries.length];
+
+        IntStream.range(0, blocks * shards).parallel().forEach(task -> {
+            int block = task / shards;
+            int shard = task % shards;
+            int first = block * this.queries;
+            int last = Math.min(first + this.queries, queries.length);
+            int start = (int) ((long) count * shard / shards);
+            int end = (int) ((long) count * (shard + 1) / shards);
+            Neighbors[] result = partial[shard];
+
+            SparseQuery[] sparse = Main.dotProduct ? new SparseQuery[last - first] : null;
+            for (int q = first; q < last; q++) {
+                result[q] = new Neighbors(this.size);
+                if (sparse != null) sparse[q - first] = new SparseQuery(queries[q]);
+            }
+
+            for (int from = start; from < end; from += this.tile) {
+                int to = Math.min(from + this.tile, end);
+                for (int q = first; q < last; q++) {
+                    if (sparse != null) {
+                        sparse[q - first].scan(this.dataset, from, to, result[q]);
+                    } else {
+                        Main.scan(queries[q], this.dataset, from, to, result[q]);
+                    }
+                }
+            }
+        });
+
+        Neighbors[] result = partial[0];
+        for (int shard = 1; shard < shards; shard++) {
+            for (int q = 0; q < queries.length; q++) {
+                result[q].merge(partial[shard][q]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int[] classify(Image[] images) {
+        Neighbors[] neighbors = this.nearest(images);
+        int[] results = new int[images.length];
+        for (int i = 0; i < images.length; i++) {
+            results[i] = Main.vote(neighbors[i], this.dataset);
+        }
+        return results;
+    }
+
+    @Override
+    public int classify(Image image) {
+        return Main.smallest(image, this.dataset, this.size);
+    }
+}
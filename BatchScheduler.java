@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BatchScheduler implements MNIST_GUI.Classifier, AutoCloseable {
+
+    // Coalesces concurrent classification requests into batches.  Callers
+    // queue their query and get a future; a single scheduler thread takes
+    // the first waiting request, keeps collecting until either the window
+    // has passed or the batch is full, and runs the whole batch as one
+    // cache-blocked pass over the training set (BatchClassifier).
+    //
+    // The two knobs trade latency for throughput: a longer window or a
+    // larger batch means fewer passes over the training data per request,
+    // but a request can wait up to one window before its pass starts.  With
+    // a window of 0 only requests that are already waiting are combined.
+
+    private final BatchClassifier classifier;
+    private final int maxBatch;
+    private final long window; // nanoseconds
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAccumulator largest = new LongAccumulator(Math::max, 0);
+    private final LongAdder waiting = new LongAdder(); // total queueing delay, ns
+    private final LongAccumulator longestWait = new LongAccumulator(Math::max, 0);
+
+    private static class Request {
+        final byte[] query;
+        final long queued = System.nanoTime();
+        final CompletableFuture<Neighbors> result = new CompletableFuture<>();
+
+        Request(byte[] query) {
+            this.query = query;
+        }
+    }
+
+    public BatchScheduler(BatchClassifier classifier, int maxBatch, long window, TimeUnit unit) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Batch: " + maxBatch);
+        }
+        if (window < 0) {
+            throw new IllegalArgumentException("Window: " + window);
+        }
+        this.classifier = classifier;
+        this.maxBatch = maxBatch;
+        this.window = unit.toNanos(window);
+        this.worker = new Thread(this::run, "batch-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+
+    public CompletableFuture<Neighbors> submit(byte[] query) {
+        // query: row-major pixels, like Image.flatten()
+        Request request = new Request(query);
+        synchronized (this.queue) {
+            if (this.running) {
+                this.queue.add(request);
+            } else {
+                request.result.completeExceptionally(new IllegalStateException("Scheduler closed"));
+            }
+        }
+        return request.result;
+    }
+
+    public CompletableFuture<Neighbors> submit(Image image) {
+        return this.submit(image.flatten());
+    }
+
+    @Override
+    public int classify(Image image) {
+        return Main.vote(this.submit(image).join(), this.classifier.dataset());
+    }
+
+    @Override
+    public int[] classify(Image[] images) {
+        // Already a batch: no need to queue
+        return this.classifier.classify(images);
+    }
+
+
+    private void run() {
+        List<Request> batch = new ArrayList<>(this.maxBatch);
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Request first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                long deadline = first.queued + this.window;
+                while (batch.size() < this.maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = (remaining > 0) ? this.queue.poll(remaining, TimeUnit.NANOSECONDS) : this.queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                this.execute(batch);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        // Closed without draining
+        for (Request request; (request = this.queue.poll()) != null; ) {
+            request.result.completeExceptionally(new IllegalStateException("Scheduler closed"));
+        }
+    }
+
+    private void execute(List<Request> batch) {
+        long start = System.nanoTime();
+        byte[][] queries = new byte[batch.size()][];
+        for (int i = 0; i < queries.length; i++) {
+            Request request = batch.get(i);
+            queries[i] = request.query;
+            long wait = start - request.queued;
+            this.waiting.add(wait);
+            this.longestWait.accumulate(wait);
+        }
+        this.batches.increment();
+        this.requests.add(queries.length);
+        this.largest.accumulate(queries.length);
+
+        try {
+            Neighbors[] results = this.classifier.nearest(queries);
+            for (int i = 0; i < results.length; i++) {
+                batch.get(i).result.complete(results[i]);
+            }
+        } catch (RuntimeException e) {
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+
+    public long batches() {
+        return this.batches.sum();
+    }
+
+    public long requests() {
+        return this.requests.sum();
+    }
+
+    public double averageBatch() {
+        long batches = this.batches();
+        return batches == 0 ? 0 : (double) this.requests() / batches;
+    }
+
+    public long largestBatch() {
+        return this.largest.get();
+    }
+
+    public double averageWait() {
+        // Queueing delay in milliseconds (from submit to the start of its pass)
+        long requests = this.requests();
+        return requests == 0 ? 0 : this.waiting.sum() / 1e6 / requests;
+    }
+
+    public double longestWait() {
+        return this.longestWait.get() / 1e6;
+    }
+
+    @Override
+    public void close() {
+        // Requests already queued are still answered
+        synchronized (this.queue) {
+            this.running = false;
+        }
+        try {
+            this.worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests in %d batches (average %.1f, largest %d), wait average %.3f ms, longest %.3f ms",
+                this.requests(), this.batches(), this.averageBatch(), this.largestBatch(),
+                this.averageWait(), this.longestWait());
+    }
+}
@@ -0,0 +1,849 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class Benchmark {
+
+    // Command line measurements of the classifier hot paths.  Run from the
+    // directory holding the MNIST files:
+    //
+    //    java Benchmark dataset [queries]   Image[] scan vs. flat Dataset scan
+    //    java Benchmark kernel [queries]    scalar vs. SIMD distance kernel
+    //    java Benchmark parallel [queries]  sequential vs. sharded single-query scan
+    //    java Benchmark abandon [queries]   full distances vs. early abandoning
+    //    java Benchmark loader              BufferedReader vs. memory-mapped loading
+    //    java Benchmark snapshot            IDX files vs. training set snapshot
+    //    java Benchmark pca [queries]       PCA shortlist + exact re-ranking vs. exact KNN
+    //    java Benchmark vptree [queries]    vantage point tree vs. linear scan
+    //    java Benchmark hnsw [queries]      HNSW recall@k and queries/s by efSearch
+    //    java Benchmark pq [queries]        product quantization vs. exact KNN
+    //    java Benchmark hamming [queries]   binarized Hamming prefilter vs. exact KNN
+    //    java Benchmark condense [queries]  condensed reference sets vs. the full set
+    //    java Benchmark cache [queries]     repeated queries through the LRU result cache
+    //    java Benchmark batch [queries]     one query at a time vs. cache-blocked batches
+    //    java Benchmark dot [queries]       direct distances vs. norms + sparse dot product
+    //    java Benchmark scheduler [queries] concurrent callers, direct vs. micro-batched
+    //    java Benchmark preprocess          GUI drawing -> image: AWT scaling vs. box filter in place
+    //    java Benchmark pipeline [queries]  accuracy and cost of preprocessing pipelines
+
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "dataset";
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        switch (mode) {
+            case "dataset":
+                dataset(queries);
+                break;
+            case "kernel":
+                kernel(queries);
+                break;
+            case "parallel":
+                parallel(queries);
+                break;
+            case "abandon":
+                abandon(queries);
+                break;
+            case "loader":
+                loader();
+                break;
+            case "snapshot":
+                snapshot();
+                break;
+            case "pca":
+                pca(queries);
+                break;
+            case "vptree":
+                vptree(queries);
+                break;
+            case "hnsw":
+                hnsw(queries);
+                break;
+            case "pq":
+                pq(queries);
+                break;
+            case "hamming":
+                hamming(queries);
+                break;
+            case "condense":
+                condense(queries);
+                break;
+            case "cache":
+                cache(queries);
+                break;
+            case "batch":
+                batch(queries);
+                break;
+            case "dot":
+                dot(queries);
+                break;
+            case "scheduler":
+                scheduler(queries);
+                break;
+            case "preprocess":
+                preprocess();
+                break;
+            case "pipeline":
+                pipeline(queries);
+                break;
+            default:
+                System.out.println("Unknown mode: " + mode);
+        }
+    }
+
+
+    private static void dataset(int queries) throws IOException {
+        Image[] tests = new BufferedReader(Main.TEST_IMAGES, Main.TEST_LABELS).read(queries);
+
+        // Heap footprint of each representation of the training set
+        long before = usedMemory();
+        Image[] images = new BufferedReader(Main.TRAIN_IMAGES, Main.TRAIN_LABELS).read();
+        long afterImages = usedMemory();
+        Dataset dataset = new Dataset(images);
+        long afterDataset = usedMemory();
+
+        System.out.println("Training images: " + images.length);
+        System.out.println("Heap Image[]: " + (afterImages - before) / 1024 + " KB");
+        System.out.println("Heap Dataset: " + (afterDataset - afterImages) / 1024 + " KB");
+
+        // Warm up both paths before timing them
+        for (int i = 0; i < Math.min(10, tests.length); i++) {
+            Main.smallest(tests[i], images, 4);
+            Main.smallest(tests[i], dataset, 4);
+        }
+
+        int[] expected = new int[tests.length];
+        long start = System.nanoTime();
+        for (int i = 0; i < tests.length; i++) {
+            expected[i] = Main.smallest(tests[i], images, 4);
+        }
+        long imageTime = System.nanoTime() - start;
+
+        int mismatches = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < tests.length; i++) {
+            if (Main.smallest(tests[i], dataset, 4) != expected[i]) mismatches++;
+        }
+        long datasetTime = System.nanoTime() - start;
+
+        report("Image[]", imageTime, tests.length);
+        report("Dataset", datasetTime, tests.length);
+        System.out.println("Mismatched classifications: " + mismatches);
+    }
+
+
+    private static void kernel(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+
+        DistanceKernel[] kernels = { new ScalarKernel(), DistanceKernel.select() };
+        int[] expected = null;
+
+        for (DistanceKernel kernel : kernels) {
+            Main.kernel = kernel;
+            for (int i = 0; i < Math.min(10, tests.length); i++) {
+                Main.smallest(tests[i], dataset, 4);
+            }
+
+            int[] results = new int[tests.length];
+            long start = System.nanoTime();
+            for (int i = 0; i < tests.length; i++) {
+                results[i] = Main.smallest(tests[i], dataset, 4);
+            }
+            report(kernel.toString(), System.nanoTime() - start, tests.length);
+
+            if (expected == null) {
+                expected = results;
+            } else if (!Arrays.equals(expected, results)) {
+                System.out.println("Kernel " + kernel + " disagrees with " + kernels[0]);
+            }
+        }
+    }
+
+
+    private static void parallel(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+
+        MNIST_GUI.Classifier[] classifiers = {
+                image -> Main.smallest(image, dataset, 4),
+                new ParallelClassifier(dataset, 4)
+        };
+        String[] names = { "sequential", "parallel" };
+        int[] expected = null;
+
+        for (int c = 0; c < classifiers.length; c++) {
+            // One query at a time, as the GUI does; the evaluator's
+            // single thread leaves the cores to the classifier itself
+            Evaluator.Report report = new Evaluator(classifiers[c], 1).evaluate(tests);
+            System.out.println(String.format("%-20s p50: %8.3f ms  p99: %8.3f ms  %8.1f queries/s",
+                    names[c], report.latency(50), report.latency(99), report.throughput()));
+
+            int[] results = classify(classifiers[c], tests);
+            if (expected == null) {
+                expected = results;
+            } else if (!Arrays.equals(expected, results)) {
+                System.out.println(names[c] + " disagrees with " + names[0]);
+            }
+        }
+
+        ParallelClassifier parallel = (ParallelClassifier) classifiers[1];
+        neighbors("parallel", tests, dataset, 4, Arrays.stream(tests).map(parallel::nearest).toArray(Neighbors[]::new));
+    }
+
+
+    private static void abandon(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+        EarlyAbandonClassifier abandoning = new EarlyAbandonClassifier(dataset, 4);
+
+        compare(tests, new String[] { "full", "early abandon" },
+                image -> Main.smallest(image, dataset, 4), abandoning);
+        System.out.println(String.format("Pixel comparisons skipped: %.1f%%", 100 * abandoning.skipped()));
+        neighbors("early abandon", tests, dataset, 4,
+                Arrays.stream(tests).map(abandoning::nearest).toArray(Neighbors[]::new));
+    }
+
+
+    private static void loader() throws IOException {
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            Dataset buffered = training();
+            long bufferedTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Dataset mapped = new MappedReader(Main.TRAIN_IMAGES, Main.TRAIN_LABELS).read();
+            long mappedTime = System.nanoTime() - start;
+
+            System.out.println(String.format("BufferedReader: %8.1f ms  MappedReader: %8.1f ms  identical: %b",
+                    bufferedTime / 1e6, mappedTime / 1e6,
+                    Arrays.equals(buffered.pixels(), mapped.pixels()) && Arrays.equals(buffered.labels(), mapped.labels())));
+        }
+    }
+
+
+    private static void snapshot() throws IOException {
+        new File(Main.TRAIN_SNAPSHOT).delete();
+
+        long start = System.nanoTime();
+        Dataset rebuilt = Snapshot.open(Main.TRAIN_SNAPSHOT, Main.TRAIN_IMAGES, Main.TRAIN_LABELS);
+        System.out.println(String.format("Without snapshot (read IDX, write snapshot): %8.1f ms", (System.nanoTime() - start) / 1e6));
+
+        for (int run = 0; run < 3; run++) {
+            start = System.nanoTime();
+            Dataset loaded = Snapshot.open(Main.TRAIN_SNAPSHOT, Main.TRAIN_IMAGES, Main.TRAIN_LABELS);
+            long loadTime = System.nanoTime() - start;
+            // Order and norms come with the snapshot, so this is ~0
+            start = System.nanoTime();
+            loaded.order();
+            loaded.norms();
+            long derivedTime = System.nanoTime() - start;
+            System.out.println(String.format("From snapshot: %8.1f ms  order + norms: %6.3f ms  identical: %b",
+                    loadTime / 1e6, derivedTime / 1e6,
+                    Arrays.equals(rebuilt.pixels(), loaded.pixels()) && Arrays.equals(rebuilt.order(), loaded.order())
+                            && Arrays.equals(rebuilt.norms(), loaded.norms())));
+        }
+    }
+
+
+    private static void pca(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+
+        evaluate("exact", tests, image -> Main.smallest(image, dataset, 4));
+        for (int components : new int[] { 20, 40, 80 }) {
+            long start = System.nanoTime();
+            PcaClassifier pca = new PcaClassifier(dataset, components, 1000, 4);
+            System.out.println(String.format("PCA with %d components built in %.1f ms", components,
+                    (System.nanoTime() - start) / 1e6));
+            for (int shortlist : new int[] { 50, 200, 1000 }) {
+                PcaClassifier classifier = (shortlist == 1000) ? pca : pca.withShortlist(shortlist);
+                evaluate("pca " + components + "/" + shortlist, tests, classifier);
+            }
+        }
+    }
+
+
+    private static void vptree(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+
+        long start = System.nanoTime();
+        VpTree tree = new VpTree(dataset, 4);
+        System.out.println(String.format("VP tree built in %.1f ms", (System.nanoTime() - start) / 1e6));
+
+        compare(tests, new String[] { "linear scan", "vp tree" }, image -> Main.smallest(image, dataset, 4), tree);
+        System.out.println(String.format("Per query: %.1f node visits, %.1f distances (linear scan: %d)",
+                tree.visitsPerQuery(), tree.distancesPerQuery(), dataset.count()));
+        neighbors("vp tree", tests, dataset, 4, Arrays.stream(tests).map(tree::nearest).toArray(Neighbors[]::new));
+    }
+
+
+    private static void hnsw(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+        int k = 4;
+
+        long start = System.nanoTime();
+        HnswClassifier hnsw = new HnswClassifier(dataset, k, 16, 100, 10);
+        System.out.println(String.format("HNSW (M = 16, efConstruction = 100) built in %.1f ms",
+                (System.nanoTime() - start) / 1e6));
+
+        start = System.nanoTime();
+        hnsw.save("hnsw.graph");
+        hnsw = HnswClassifier.load("hnsw.graph", dataset, k, 10);
+        System.out.println(String.format("Saved and loaded in %.1f ms", (System.nanoTime() - start) / 1e6));
+        new File("hnsw.graph").delete();
+
+        // Exact neighbors for recall
+        Neighbors[] exact = new Neighbors[tests.length];
+        for (int i = 0; i < tests.length; i++) {
+            exact[i] = new Neighbors(k);
+            Main.scan(tests[i].flatten(), dataset, 0, dataset.count(), exact[i]);
+        }
+        evaluate("exact", tests, image -> Main.smallest(image, dataset, 4));
+
+        for (int ef : new int[] { 10, 20, 40, 80, 160 }) {
+            hnsw.efSearch(ef);
+            int found = 0;
+            for (int i = 0; i < tests.length; i++) {
+                Neighbors approximate = hnsw.nearest(tests[i]);
+                for (int a = 0; a < k; a++) {
+                    for (int b = 0; b < k; b++) {
+                        if (approximate.index(a) == exact[i].index(b)) found++;
+                    }
+                }
+            }
+            System.out.println(String.format("efSearch %4d  recall@%d: %.4f", ef, k, (double) found / (k * tests.length)));
+            evaluate("hnsw ef " + ef, tests, hnsw);
+        }
+    }
+
+
+    private static void pq(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+
+        System.out.println(String.format("Raw pixels: %d bytes/image", dataset.size() + 1));
+        evaluate("exact", tests, image -> Main.smallest(image, dataset, 4));
+
+        ProductQuantizer pq = null;
+        for (int subspaces : new int[] { 16, 28, 56 }) {
+            // Built from its own copy of the training set, so the heap it
+            // keeps (codes, labels, codebooks) can be measured after the copy
+            // is gone
+            pq = null;
+            long before = usedMemory();
+            Dataset copy = training();
+            long start = System.nanoTime();
+            pq = new ProductQuantizer(copy, 4, subspaces, 10, 10000, 0);
+            long time = System.nanoTime() - start;
+            copy = null;
+            long retained = usedMemory() - before;
+            System.out.println(String.format(
+                    "PQ %d subspaces: %d bytes/image, %d KB kept on the heap (the pixels are %d KB), trained in %.1f ms",
+                    subspaces, pq.bytesPerImage(), retained / 1024, dataset.pixels().length / 1024, time / 1e6));
+            evaluate("pq " + subspaces, tests, pq);
+            evaluate("pq " + subspaces + " rerank 100", tests, pq.withRerank(dataset, 100));
+        }
+    }
+
+
+    private static void hamming(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+        MNIST_GUI.Classifier exact = image -> Main.smallest(image, dataset, 4);
+        int[] expected = classify(exact, tests);
+
+        evaluate("exact", tests, exact);
+        HammingClassifier hamming = new HammingClassifier(dataset, 4, 100);
+        for (int prefilter : new int[] { 100, 300, 1000 }) {
+            HammingClassifier classifier = hamming.withPrefilter(prefilter);
+            evaluate("hamming " + prefilter, tests, classifier);
+
+            int[] results = classify(classifier, tests);
+            int agree = 0;
+            for (int i = 0; i < tests.length; i++) {
+                if (results[i] == expected[i]) agree++;
+            }
+            System.out.println(String.format("    agrees with the full scan on %.2f%%", 100.0 * agree / tests.length));
+        }
+    }
+
+
+    private static void condense(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+
+        evaluate("full " + dataset.count(), tests, image -> Main.smallest(image, dataset, 4));
+        for (int perDigit : new int[] { 200, 600 }) {
+            long start = System.nanoTime();
+            Dataset prototypes = Condenser.prototypes(dataset, perDigit, 10);
+            long prototypeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            Dataset edited = Condenser.edit(prototypes, 4);
+            long editTime = System.nanoTime() - start;
+            System.out.println(String.format("%d per digit: prototypes in %.1f ms, edited in %.1f ms",
+                    perDigit, prototypeTime / 1e6, editTime / 1e6));
+
+            evaluate("prototypes " + prototypes.count(), tests, image -> Main.smallest(image, prototypes, 4));
+            evaluate("edited " + edited.count(), tests, image -> Main.smallest(image, edited, 4));
+        }
+    }
+
+
+    private static void cache(int queries) throws IOException {
+        // Every test image is sent four times (the copies are new Image
+        // objects with the same pixels), as clients resending a drawing would
+        Image[] distinct = tests(queries);
+        Image[] tests = new Image[4 * distinct.length];
+        for (int i = 0; i < tests.length; i++) {
+            Image image = distinct[i % distinct.length];
+            tests[i] = new Image(copy(image), image.digit());
+        }
+        Dataset dataset = training();
+        MNIST_GUI.Classifier exact = image -> Main.smallest(image, dataset, 4);
+        CachingClassifier cached = new CachingClassifier(exact, Math.max(1, distinct.length / 2));
+        CachingClassifier large = new CachingClassifier(exact, distinct.length);
+
+        compare(tests, new String[] { "uncached", "cache " + cached.capacity(), "cache " + large.capacity() },
+                exact, cached, large);
+        System.out.println("cache " + cached.capacity() + ": " + cached);
+        System.out.println("cache " + large.capacity() + ": " + large);
+
+        long start = System.nanoTime();
+        for (Image image : distinct) {
+            large.classify(image);
+        }
+        report("cache hit", System.nanoTime() - start, distinct.length);
+    }
+
+    private static void batch(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+        MNIST_GUI.Classifier single = image -> Main.smallest(image, dataset, 4);
+        BatchClassifier batch = new BatchClassifier(dataset, 4);
+
+        // One at a time: sequentially, and spread over all cores like the batch
+        long start = System.nanoTime();
+        int[] expected = classify(single, tests);
+        report("one at a time", System.nanoTime() - start, tests.length);
+
+        start = System.nanoTime();
+        int[] parallel = Arrays.stream(tests).parallel().mapToInt(single::classify).toArray();
+        report("parallel singles", System.nanoTime() - start, tests.length);
+
+        for (int tile : new int[] { 64, 256, 1024 }) {
+            BatchClassifier tiled = new BatchClassifier(dataset, 4, 32, tile);
+            start = System.nanoTime();
+            int[] results = tiled.classify(tests);
+            report("batch tile " + tile, System.nanoTime() - start, tests.length);
+            if (!Arrays.equals(expected, results)) {
+                System.out.println("batch tile " + tile + " disagrees with one at a time");
+            }
+            neighbors("batch tile " + tile, tests, dataset, 4, tiled.nearest(tests));
+        }
+        if (!Arrays.equals(expected, parallel) || !Arrays.equals(expected, batch.classify(tests))) {
+            System.out.println("disagreement with one at a time");
+        }
+    }
+
+    private static void dot(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+
+        long start = System.nanoTime();
+        dataset.norms();
+        System.out.println(String.format("Training norms computed in %.1f ms", (System.nanoTime() - start) / 1e6));
+
+        // Exactly the same neighbors (distances and indexes) for every query
+        int different = 0;
+        long nonZero = 0;
+        for (Image test : tests) {
+            byte[] query = test.flatten();
+            Neighbors direct = new Neighbors(4);
+            Neighbors dot = new Neighbors(4);
+            Main.scan(query, dataset, 0, dataset.count(), direct);
+            SparseQuery sparse = new SparseQuery(query);
+            sparse.scan(dataset, 0, dataset.count(), dot);
+            nonZero += sparse.nonZero();
+            for (int k = 0; k < 4; k++) {
+                if (direct.index(k) != dot.index(k) || direct.distance(k) != dot.distance(k)) {
+                    different++;
+                    break;
+                }
+            }
+        }
+        System.out.println(String.format("Non-zero query pixels: %.1f of %d, queries with different neighbors: %d",
+                (double) nonZero / tests.length, dataset.size(), different));
+
+        compare(tests, new String[] { "direct " + Main.kernel, "norms + dot" },
+                image -> Main.smallest(image, dataset, 4),
+                image -> {
+                    Neighbors neighbors = new Neighbors(4);
+                    new SparseQuery(image.flatten()).scan(dataset, 0, dataset.count(), neighbors);
+                    return Main.vote(neighbors, dataset);
+                });
+    }
+
+    private static void scheduler(int queries) throws IOException {
+        // 32 callers classify the test images concurrently, one image each
+        // at a time, either scanning on their own or through the scheduler
+        Image[] tests = tests(queries);
+        Dataset dataset = training();
+        BatchClassifier batch = new BatchClassifier(dataset, 4);
+        int[] expected = classify(image -> Main.smallest(image, dataset, 4), tests);
+
+        callers("direct", tests, expected, image -> Main.smallest(image, dataset, 4));
+        for (int window : new int[] { 0, 2, 10 }) {
+            for (int size : new int[] { 16, 64 }) {
+                try (BatchScheduler scheduler = new BatchScheduler(batch, size, window, TimeUnit.MILLISECONDS)) {
+                    callers("window " + window + " ms, batch " + size, tests, expected, scheduler);
+                    System.out.println("    " + scheduler);
+                }
+            }
+        }
+    }
+
+    private static void callers(String name, Image[] tests, int[] expected, MNIST_GUI.Classifier classifier) {
+        int[] results = new int[tests.length];
+        ExecutorService callers = Executors.newFixedThreadPool(32);
+        long start = System.nanoTime();
+        try {
+            callers.invokeAll(IntStream.range(0, tests.length)
+                    .mapToObj(i -> (Callable<Integer>) () -> results[i] = classifier.classify(tests[i]))
+                    .collect(Collectors.toList()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            callers.shutdown();
+        }
+        report(name, System.nanoTime() - start, tests.length);
+        if (!Arrays.equals(expected, results)) {
+            System.out.println(name + " disagrees with one at a time");
+        }
+    }
+
+    private static void preprocess() {
+        // A "7" drawn on the default 560 x 560 canvas with the default pen
+        BufferedImage drawing = new BufferedImage(560, 560, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = drawing.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 560, 560);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.BLACK);
+        g.setStroke(new BasicStroke(35, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.drawLine(150, 120, 420, 120);
+        g.drawLine(420, 120, 250, 460);
+        g.dispose();
+
+        int[] sums = new int[28];
+        byte[] pixels = new byte[28 * 28];
+        byte[] scratch = new byte[28 * 28];
+        Image before = null;
+
+        for (int run = 0; run < 5; run++) {
+            int repeats = 200;
+            long start = System.nanoTime();
+            for (int i = 0; i < repeats; i++) {
+                before = legacyImage(drawing, 28, 28);
+            }
+            long beforeTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < repeats; i++) {
+                MNIST_GUI.downsample(drawing, pixels, 28, 28, sums);
+                MNIST_GUI.DEFAULT.apply(pixels, 28, 28, scratch);
+            }
+            long afterTime = System.nanoTime() - start;
+
+            System.out.println(String.format("scale + getRGB + brighten + center: %8.1f us   box filter + pipeline: %8.1f us",
+                    beforeTime / 1e3 / repeats, afterTime / 1e3 / repeats));
+        }
+        Image after = image(pixels, 28, 28);
+
+        // The pipeline on its own must give what the old brighten + center gave
+        MNIST_GUI.downsample(drawing, pixels, 28, 28, sums);
+        Image boxed = image(pixels, 28, 28);
+        System.out.println("Box filtered drawing, " + MNIST_GUI.DEFAULT + " vs. old brighten + center: "
+                + legacy(new Image[] { boxed }, MNIST_GUI.DEFAULT));
+
+        int largest = 0;
+        for (int row = 0; row < 28; row++) {
+            for (int col = 0; col < 28; col++) {
+                largest = Math.max(largest, Math.abs(before.get(row, col) - after.get(row, col)));
+            }
+        }
+        System.out.println("Largest pixel difference: " + largest);
+        System.out.println("Before:\n" + before.image() + "\nAfter:\n" + after.image());
+    }
+
+    // The drawing -> image steps MNIST_GUI used before the box filter and
+    // the Pipeline, kept as the reference for the preprocess mode (and the
+    // JMH PreprocessBenchmark)
+
+    public static Image legacyImage(BufferedImage drawing, int rows, int columns) {
+        // What DrawingPanel.getImage did: AWT scaling, getRGB per pixel,
+        // then brighten and center, each into a new image
+        BufferedImage scaled = scale(drawing, rows, columns);
+        Image image = new Image(rows, columns, Image.UNKNOWN);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                image.set(row, col, getGray(scaled, row, col));
+            }
+        }
+        return center(brighten(image));
+    }
+
+    private static int RGBtoGray(int rgb) {
+        // MNIST gray scale is inverted wrt to the GUI gray scale
+        // MNIST: White = 0, Black = 255; GUI: White = 255, Black = 0
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+        int gray = (red + green + blue) / 3;
+        return 255 - gray;
+    }
+
+    private static int getGray(BufferedImage image, int row, int column) {
+        return RGBtoGray(image.getRGB(column, row));
+    }
+
+
+    private static BufferedImage scale(BufferedImage image, int height, int width) {
+        // Resize (downsize) the image buffer to new dimensions (usually to 28 x 28).
+        final int scaling = java.awt.Image.SCALE_SMOOTH;
+        BufferedImage scaled = new BufferedImage(width, height, image.getType());
+        Graphics2D g = scaled.createGraphics();
+        g.drawImage(image.getScaledInstance(width, height, scaling), 0, 0, null);
+        g.dispose();
+        return scaled;
+    }
+
+
+    private static Image brighten(Image image) {
+        // Restore full dynamic constrast range to the image
+        // It is reduced by the scaling/resizing operation
+        int rows = image.rows();
+        int columns = image.columns();
+
+        int max = 0;
+        int min = 255;
+
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                int pixel = image.get(row, col);
+                if (pixel > max) max = pixel;
+                if (pixel < min) min = pixel;
+            }
+        }
+
+        if (max == min) return image;
+
+        Image result = new Image(rows, columns, image.digit());
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                int pixel = image.get(row, col);
+                pixel = min + 255 * (pixel - min) / (max - min);
+                result.set(row, col, pixel);
+            }
+        }
+
+        return result;
+    }
+
+
+    private static int get(Image image, int row, int col) {
+        if (row < 0 || row >= image.rows() || col < 0 || col >= image.columns()) {
+            return 0; // WHITE (MNIST)
+        } else {
+            return image.get(row, col);
+        }
+    }
+
+    private static Image center(Image image) {
+        // Recenter the image so that its center of mass is in the middle of the image
+        int rows = image.rows();
+        int columns = image.columns();
+
+        int sum = 0;
+        int rowSum = 0;
+        int colSum = 0;
+
+        // Compute the center of mass.
+
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                int pixel = image.get(row, col);
+                rowSum += row * pixel;
+                colSum += col * pixel;
+                sum += pixel;
+            }
+        }
+
+        if (sum == 0) return image;
+
+        int centerRow = rows / 2;
+        int centerCol = columns / 2;
+
+        int centerOfMassRow = rowSum / sum;
+        int centerOfMassCol = colSum / sum;
+
+        int rowShift = centerRow - centerOfMassRow;
+        int colShift = centerCol - centerOfMassCol;
+
+        // Shift the image so that the center of mass is now
+        // at the center pixel of the image.
+
+        Image result = new Image(rows, columns, image.digit());
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                int pixel = get(image, row - rowShift, col - colShift);
+                result.set(row, col, pixel);
+            }
+        }
+
+        return result;
+    }
+
+    private static void pipeline(int queries) throws IOException {
+        Image[] tests = tests(queries);
+        Dataset raw = training();
+        System.out.println("Test images, normalize,center vs. old brighten + center: "
+                + legacy(tests, Pipeline.parse("normalize,center")));
+
+        for (String text : new String[] { "none", "normalize,center", "crop,rescale(20),normalize,center",
+                "crop,rescale(20),normalize,center,deskew", "deskew,crop,rescale(20),normalize,center" }) {
+            Pipeline pipeline = Pipeline.parse(text);
+            long start = System.nanoTime();
+            Dataset dataset = pipeline.apply(raw);
+            System.out.println(String.format("%s: training set preprocessed in %.1f ms", pipeline,
+                    (System.nanoTime() - start) / 1e6));
+
+            Image[] processed = Arrays.stream(tests).map(pipeline::apply).toArray(Image[]::new);
+            evaluate("    knn", processed, image -> Main.smallest(image, dataset, 4));
+        }
+    }
+
+    private static String legacy(Image[] images, Pipeline pipeline) {
+        // Compare the pipeline with the GUI's old brighten + center.  The
+        // old brighten fails (a pixel above 255) when the lightest pixel is
+        // not 0; those images are counted separately.
+        int different = 0;
+        int failed = 0;
+        for (Image image : images) {
+            Image old;
+            try {
+                old = center(brighten(image));
+            } catch (IllegalArgumentException e) {
+                failed++;
+                continue;
+            }
+            if (!old.equals(pipeline.apply(image))) different++;
+        }
+        return String.format("%d of %d images differ, %d not comparable (old brighten out of range)",
+                different, images.length - failed, failed);
+    }
+
+    private static Image image(byte[] pixels, int rows, int columns) {
+        byte[][] result = new byte[rows][];
+        for (int row = 0; row < rows; row++) {
+            result[row] = Arrays.copyOfRange(pixels, row * columns, (row + 1) * columns);
+        }
+        return new Image(result);
+    }
+
+    private static byte[][] copy(Image image) {
+        byte[][] pixels = new byte[image.rows()][];
+        for (int row = 0; row < pixels.length; row++) {
+            pixels[row] = image.pixels()[row].clone();
+        }
+        return pixels;
+    }
+
+
+    static void evaluate(String name, Image[] tests, MNIST_GUI.Classifier classifier) {
+        Evaluator.Report report = new Evaluator(classifier).evaluate(tests);
+        System.out.println(String.format("%-20s accuracy: %6.2f%%  %10.1f images/s  p50: %8.3f ms  p99: %8.3f ms",
+                name, report.accuracy(), report.throughput(), report.latency(50), report.latency(99)));
+    }
+
+    static void compare(Image[] tests, String[] names, MNIST_GUI.Classifier... classifiers) {
+        // Time each classifier over the same queries (one at a time, after a
+        // short warm up) and check that they all agree with the first
+        int[] expected = null;
+
+        for (int c = 0; c < classifiers.length; c++) {
+            for (int i = 0; i < Math.min(10, tests.length); i++) {
+                classifiers[c].classify(tests[i]);
+            }
+
+            long start = System.nanoTime();
+            int[] results = classify(classifiers[c], tests);
+            report(names[c], System.nanoTime() - start, tests.length);
+
+            if (expected == null) {
+                expected = results;
+            } else if (!Arrays.equals(expected, results)) {
+                System.out.println(names[c] + " disagrees with " + names[0]);
+            }
+        }
+    }
+
+    static void neighbors(String name, Image[] tests, Dataset dataset, int size, Neighbors[] found) {
+        // Check that an index finds exactly the neighbors (indexes and
+        // distances) of the linear scan in Main.smallest
+        int different = 0;
+        for (int i = 0; i < tests.length; i++) {
+            Neighbors expected = new Neighbors(size);
+            Main.scan(tests[i].flatten(), dataset, 0, dataset.count(), expected);
+            for (int k = 0; k < size; k++) {
+                if (expected.index(k) != found[i].index(k) || expected.distance(k) != found[i].distance(k)) {
+                    different++;
+                    break;
+                }
+            }
+        }
+        System.out.println(String.format("%-20s queries with different neighbors than the linear scan: %d of %d",
+                name, different, tests.length));
+    }
+
+    static Image[] tests(int queries) throws IOException {
+        return new BufferedReader(Main.TEST_IMAGES, Main.TEST_LABELS).read(queries);
+    }
+
+    static Dataset training() throws IOException {
+        return new Dataset(new BufferedReader(Main.TRAIN_IMAGES, Main.TRAIN_LABELS).read());
+    }
+
+    static int[] classify(MNIST_GUI.Classifier classifier, Image[] images) {
+        int[] results = new int[images.length];
+        for (int i = 0; i < images.length; i++) {
+            results[i] = classifier.classify(images[i]);
+        }
+        return results;
+    }
+
+    static void report(String name, long nanos, int queries) {
+        double millis = nanos / 1e6 / queries;
+        System.out.println(String.format("%-20s %8.3f ms/query %10.1f queries/s", name, millis, 1000 / millis));
+    }
+
+    static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
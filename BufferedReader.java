@@ -4,7 +4,14 @@ import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BufferedReader implements Iterable<Image> {
 
@@ -131,6 +138,7 @@ public class BufferedReader implements Iterable<Image> {
 
 
     public Image[] read(int count) throws IOException {
+        long start = Metrics.start();
         count = Math.min(count, this.remain());
         Image[] images = new Image[count];
 
@@ -142,6 +150,7 @@ public class BufferedReader implements Iterable<Image> {
             images[i] = this.readImage();
         }
 
+        Metrics.stop(Metrics.LOAD, start);
         return images;
     }
 
@@ -152,32 +161,90 @@ public class BufferedReader implements Iterable<Image> {
 
     @Override
     public Iterator<Image> iterator() {
+        // The images not read yet.  A read error is thrown as an
+        // UncheckedIOException (the reader cannot go on after it).
         return new ImageIterator(this);
     }
 
+    public Stream<Image> stream() {
+        // The images not read yet, one at a time.  The file can only be read
+        // sequentially, but a parallel() stream still works: it takes
+        // batches of at most BATCH images from the reader and hands them to
+        // other threads, so it holds about one batch per worker thread
+        // rather than the file.
+        return StreamSupport.stream(new ImageSpliterator(this.iterator(), this.remain()), false);
+    }
+
+    private static final int BATCH = 256; // images per split of a parallel stream (about 256 KB for 28 x 28)
+
+    private static class ImageSpliterator implements Spliterator<Image> {
+
+        // Reads the images in order; a split reads the next BATCH images
+        // into an array (unlike Spliterators.spliterator(Iterator, ...),
+        // whose batches keep growing to millions of elements)
+
+        private final Iterator<Image> images;
+        private long remain;
+
+        ImageSpliterator(Iterator<Image> images, long remain) {
+            this.images = images;
+            this.remain = remain;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Image> action) {
+            if (!this.images.hasNext()) return false;
+            this.remain--;
+            action.accept(this.images.next());
+            return true;
+        }
+
+        @Override
+        public Spliterator<Image> trySplit() {
+            int size = (int) Math.min(BATCH, this.remain);
+            if (size <= 1 || !this.images.hasNext()) return null;
+            Image[] batch = new Image[size];
+            int read = 0;
+            while (read < size && this.images.hasNext()) {
+                batch[read++] = this.images.next();
+            }
+            this.remain -= read;
+            return Spliterators.spliterator(batch, 0, read, this.characteristics());
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.remain;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | NONNULL;
+        }
+    }
+
     private static class ImageIterator implements Iterator<Image> {
 
         private BufferedReader reader;
-        private int current;
 
         public ImageIterator(BufferedReader reader) {
             this.reader = reader;
-            this.current = 0;
         }
 
         @Override
         public boolean hasNext() {
-            return this.current < this.reader.count();
+            return this.reader.remain() > 0;
         }
 
         @Override
         public Image next() {
-            this.current++;
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
             try {
                 return this.reader.readImage();
             } catch (IOException e) {
-                this.current = this.reader.count();
-                return null;
+                throw new UncheckedIOException(e);
             }
         }
     }
@@ -0,0 +1,118 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CachingClassifier implements MNIST_GUI.Classifier {
+
+    // A bounded least-recently-used cache of classification results in front
+    // of another classifier.  Images are looked up by their content
+    // (Image.fingerprint), so a query that was already classified is
+    // answered without scanning the training set.  The pixels are kept with
+    // each result and compared on a hit, so a fingerprint collision can only
+    // cost a miss, never a wrong answer.
+    //
+    // Safe to use from several threads.  The classifier itself is called
+    // outside the lock, so two threads missing on the same image at the same
+    // time both classify it.
+
+    private final MNIST_GUI.Classifier classifier;
+    private final int capacity;
+    private final Map<Long, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class Entry {
+        final byte[] pixels;
+        final int digit;
+
+        Entry(byte[] pixels, int digit) {
+            this.pixels = pixels;
+            this.digit = digit;
+        }
+    }
+
+    public CachingClassifier(MNIST_GUI.Classifier classifier, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity: " + capacity);
+        }
+
+        this.classifier = classifier;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (this.size() > CachingClassifier.this.capacity) {
+                    CachingClassifier.this.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public int classify(Image image) {
+        Long key = image.fingerprint();
+        byte[] pixels = image.flatten();
+
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry != null && Arrays.equals(entry.pixels, pixels)) {
+            this.hits.increment();
+            return entry.digit;
+        }
+
+        this.misses.increment();
+        int digit = this.classifier.classify(image);
+        synchronized (this.entries) {
+            this.entries.put(key, new Entry(pixels, digit));
+        }
+        return digit;
+    }
+
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    public long evictions() {
+        return this.evictions.sum();
+    }
+
+    public double hitRate() {
+        long hits = this.hits();
+        long total = hits + this.misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d cached, %d hits, %d misses, %d evictions",
+                this.size(), this.capacity, this.hits(), this.misses(), this.evictions());
+    }
+}
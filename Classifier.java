@@ -1,8 +1,18 @@
 //nadia iskandar
 public class Classifier implements MNIST_GUI.Classifier {
+    private final int k;
+
+    public Classifier() {
+        this(Main.k);
+    }
+
+    public Classifier(int k) {
+        this.k = k;
+    }
+
     @Override
     public int classify(Image image) {
-        return Main.smallest(image, Main.array, 4);
+        return Main.smallest(image, Main.dataset, this.k);
 
 
     }
@@ -0,0 +1,281 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ClassifierServer implements AutoCloseable {
+
+    // A headless classification server over raw TCP.  All connections share
+    // one loaded Dataset; each connection is served on its own (virtual, when
+    // the JVM has them) thread and may send any number of requests.
+    //
+    // Protocol (all integers big-endian, as in IDX files):
+    //
+    //    request    int length               rows * columns of the dataset (784);
+    //                                         0 closes the connection
+    //               byte[length] pixels      one IDX image record: row-major,
+    //                                         0 = white ... 255 = black
+    //
+    //    response   int digit                the classification (-1: bad request or
+    //                                         the classification failed)
+    //               int k                    number of neighbors
+    //               k x (int digit, int distance)
+    //               10 x double              weighted vote for each digit
+    //
+    // A request of the wrong length gets digit -1, k = 0 and ten zero votes
+    // and the connection is closed.  A request that could not be classified
+    // gets the same answer but the connection stays open.  Every response
+    // therefore has the same shape: 8 + 8 * k + 8 * 10 bytes.
+    //
+    // With a BatchScheduler, concurrent requests from all connections are
+    // combined into batched passes over the training set instead of each
+    // scanning it on its own.
+
+    private static final int POLL = 200; // ms between shutdown checks while a connection waits
+
+    private final Dataset dataset;
+    private final int size;
+    private final BatchScheduler scheduler; // null: every request scans on its own
+    private final Pipeline pipeline;        // applied to every query (as to the dataset)
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final Thread acceptor;
+    private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder(); // answered with -1
+
+    public ClassifierServer(Dataset dataset, int size, int port) throws IOException {
+        this(dataset, size, port, null);
+    }
+
+    public ClassifierServer(Dataset dataset, int size, int port, BatchScheduler scheduler) throws IOException {
+        this(dataset, size, port, scheduler, Pipeline.none());
+    }
+
+    public ClassifierServer(Dataset dataset, int size, int port, BatchScheduler scheduler, Pipeline pipeline)
+            throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size: " + size);
+        }
+        this.dataset = dataset;
+        this.size = size;
+        this.scheduler = scheduler;
+        this.pipeline = pipeline;
+        this.server = new ServerSocket();
+        this.server.bind(new InetSocketAddress(port));
+        this.connections = threads();
+        this.acceptor = new Thread(this::accept, "classifier-server");
+        this.acceptor.start();
+    }
+
+    static ExecutorService threads() {
+        // One virtual thread per task (JDK 21 and later), otherwise a cached
+        // pool of platform threads
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public int port() {
+        return this.server.getLocalPort();
+    }
+
+    public long accepted() {
+        return this.accepted.sum();
+    }
+
+    public long requests() {
+        return this.requests.sum();
+    }
+
+    public long failures() {
+        return this.failures.sum();
+    }
+
+
+    private void accept() {
+        while (this.running) {
+            try {
+                Socket socket = this.server.accept();
+                socket.setTcpNoDelay(true);
+                this.accepted.increment();
+                Connection connection = new Connection(socket);
+                this.open.add(connection);
+                this.connections.execute(connection);
+            } catch (IOException e) {
+                if (this.running) {
+                    System.out.println("Accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = this.socket) {
+                BufferedInputStream buffered = new BufferedInputStream(socket.getInputStream());
+                DataInputStream input = new DataInputStream(buffered);
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                byte[] query = new byte[dataset.size()];
+
+                while (this.next(buffered)) {
+                    int length = input.readInt();
+                    if (length == 0) break;
+                    if (length != query.length) {
+                        failed(output);
+                        output.flush();
+                        break;
+                    }
+                    input.readFully(query);
+                    answer(query, output);
+                    output.flush();
+                    requests.increment();
+                }
+            } catch (EOFException | SocketException e) {
+                // Client went away or the server is shutting down
+            } catch (IOException e) {
+                System.out.println("Connection failed: " + e);
+            } finally {
+                open.remove(this);
+            }
+        }
+
+        private boolean next(BufferedInputStream input) throws IOException {
+            // Wait for the first byte of the next request without consuming
+            // it.  Returns false at the end of the stream, or if the server
+            // is shutting down before a request has started: this thread
+            // decides, so a request that has begun to arrive is always answered.
+            this.socket.setSoTimeout(POLL);
+            try {
+                while (running) {
+                    try {
+                        input.mark(1);
+                        if (input.read() < 0) return false;
+                        input.reset();
+                        return true;
+                    } catch (SocketTimeoutException e) {
+                        // Nothing yet
+                    }
+                }
+                return false;
+            } finally {
+                this.socket.setSoTimeout(0);
+            }
+        }
+
+        void close() {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private void answer(byte[] query, DataOutputStream output) throws IOException {
+        this.pipeline.apply(query, this.dataset.rows(), this.dataset.columns());
+        Neighbors neighbors;
+        try {
+            if (this.scheduler != null) {
+                neighbors = this.scheduler.submit(query).join();
+            } else {
+                neighbors = new Neighbors(this.size);
+                Main.scan(query, this.dataset, 0, this.dataset.count(), neighbors);
+            }
+        } catch (CompletionException | CancellationException e) {
+            // e.g. the scheduler was closed or the scan interrupted
+            failed(output);
+            return;
+        }
+        int[] digits = neighbors.digits(this.dataset);
+        int[] distances = neighbors.distances();
+
+        output.writeInt(Main.vote(digits, distances));
+        output.writeInt(digits.length);
+        for (int k = 0; k < digits.length; k++) {
+            output.writeInt(digits[k]);
+            output.writeInt(distances[k]);
+        }
+        for (double vote : Main.votes(digits, distances)) {
+            output.writeDouble(vote);
+        }
+    }
+
+
+    private void failed(DataOutputStream output) throws IOException {
+        // The error response: no neighbors, but still the ten votes so the
+        // client can read it like any other
+        this.failures.increment();
+        output.writeInt(-1);
+        output.writeInt(0);
+        for (int digit = 0; digit < 10; digit++) {
+            output.writeDouble(0);
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        this.close(5, TimeUnit.SECONDS);
+    }
+
+    public void close(long timeout, TimeUnit unit) throws IOException {
+        // Graceful shutdown: stop accepting, let requests in progress be
+        // answered (each connection then closes itself, idle ones within
+        // POLL ms), then force whatever is left
+        this.running = false;
+        this.server.close();
+        this.connections.shutdown();
+
+        try {
+            this.acceptor.join(unit.toMillis(timeout));
+            if (!this.connections.awaitTermination(timeout, unit)) {
+                for (Connection connection : this.open) {
+                    connection.close();
+                }
+                this.connections.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.connections.shutdownNow();
+        }
+        if (this.scheduler != null) {
+            this.scheduler.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("port %d: %d connections (%d open), %d requests (%d failed)",
+                this.port(), this.accepted(), this.open.size(), this.requests(), this.failures())
+                + (this.scheduler != null ? "; " + this.scheduler : "");
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+public class Condenser {
+
+    // Offline reduction of a training set to a much smaller reference set
+    // for KNN.  Query cost is proportional to the size of the reference set,
+    // so a 10x smaller set classifies about 10x faster.
+    //
+    //    prototypes  replaces the images of each digit by k-means centroids
+    //    edit        drops images whose own k nearest neighbors (excluding
+    //                themselves) vote for a different digit (Wilson editing)
+    //
+    // Both run in parallel across all cores.  The result is an ordinary
+    // Dataset, which can be saved with Dataset.write and read back with
+    // MappedReader.
+
+    private static final long SEED = 7;
+
+
+    public static Dataset prototypes(Dataset dataset, int perDigit, int iterations) {
+        // perDigit centroids for each digit (fewer if a digit has fewer images)
+        int size = dataset.size();
+        byte[][] centroids = new byte[10][];
+
+        IntStream.range(0, 10).parallel().forEach(digit -> {
+            int[] members = IntStream.range(0, dataset.count()).filter(i -> dataset.digit(i) == digit).toArray();
+            centroids[digit] = kmeans(dataset, members, Math.min(perDigit, members.length), iterations,
+                    new SplittableRandom(SEED + digit));
+        });
+
+        int count = 0;
+        for (byte[] pixels : centroids) {
+            count += pixels.length / size;
+        }
+
+        byte[] pixels = new byte[count * size];
+        byte[] labels = new byte[count];
+        int index = 0;
+        for (int digit = 0; digit < 10; digit++) {
+            int clusters = centroids[digit].length / size;
+            System.arraycopy(centroids[digit], 0, pixels, index * size, centroids[digit].length);
+            Arrays.fill(labels, index, index + clusters, (byte) digit);
+            index += clusters;
+        }
+        return new Dataset(dataset.rows(), dataset.columns(), pixels, labels);
+    }
+
+    private static byte[] kmeans(Dataset dataset, int[] members, int clusters, int iterations, SplittableRandom random) {
+        // Lloyd's k-means over the given images; centroids are rounded to
+        // pixel values so they can be scanned like any other image
+        int size = dataset.size();
+        byte[] data = dataset.pixels();
+        byte[] centroids = new byte[clusters * size];
+
+        int[] shuffled = members.clone();
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+        }
+        for (int c = 0; c < clusters; c++) {
+            System.arraycopy(data, dataset.offset(shuffled[c]), centroids, c * size, size);
+        }
+
+        int[] assignment = new int[members.length];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            IntStream.range(0, members.length).parallel().forEach(m -> {
+                byte[] query = Arrays.copyOfRange(data, dataset.offset(members[m]), dataset.offset(members[m] + 1));
+                int best = 0;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int c = 0, offset = 0; c < clusters; c++, offset += size) {
+                    int distance = Main.kernel.distance(query, centroids, offset);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = c;
+                    }
+                }
+                assignment[m] = best;
+            });
+
+            long[] sums = new long[clusters * size];
+            int[] counts = new int[clusters];
+            for (int m = 0; m < members.length; m++) {
+                int base = assignment[m] * size;
+                int offset = dataset.offset(members[m]);
+                counts[assignment[m]]++;
+                for (int p = 0; p < size; p++) {
+                    sums[base + p] += data[offset + p] & 0xFF;
+                }
+            }
+            for (int c = 0; c < clusters; c++) {
+                if (counts[c] == 0) continue; // keep an empty centroid where it is
+                for (int p = 0; p < size; p++) {
+                    centroids[c * size + p] = (byte) Math.round((double) sums[c * size + p] / counts[c]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+
+    public static Dataset edit(Dataset dataset, int size) {
+        // Keep only the images that the rest of the set classifies correctly.
+        // This is a full scan per image (count^2 distances), so it is best
+        // applied to an already reduced set.
+        boolean[] keep = new boolean[dataset.count()];
+
+        IntStream.range(0, dataset.count()).parallel().forEach(i -> {
+            byte[] query = Arrays.copyOfRange(dataset.pixels(), dataset.offset(i), dataset.offset(i + 1));
+            Neighbors neighbors = new Neighbors(size);
+            Main.scan(query, dataset, 0, i, neighbors);
+            Main.scan(query, dataset, i + 1, dataset.count(), neighbors);
+            keep[i] = Main.vote(neighbors, dataset) == dataset.digit(i);
+        });
+
+        return dataset.subset(IntStream.range(0, keep.length).filter(i -> keep[i]).toArray());
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class Dataset {
+
+    // A set of MNIST images stored as one contiguous block of pixels.
+    // Image i occupies pixels[i * size() ... (i + 1) * size() - 1] in row-major
+    // order and its digit is labels[i].  Scanning the set is a single linear
+    // pass over memory instead of visiting one Image and 28 row arrays per sample.
+
+    private final int rows;
+    private final int columns;
+    private final int count;
+    private final byte[] pixels;
+    private final byte[] labels;
+    private volatile int[] order; // computed on first use (see order)
+    private volatile int[] norms; // computed on first use (see norms)
+
+    public Dataset(int rows, int columns, byte[] pixels, byte[] labels) {
+        this(rows, columns, pixels, labels, null, null);
+    }
+
+    public Dataset(int rows, int columns, byte[] pixels, byte[] labels, int[] order, int[] norms) {
+        // order, norms: the pixel order by decreasing variance and the norm
+        // of every sample if already known (e.g. from a Snapshot), otherwise
+        // null to compute them when needed
+        if (rows <= 0) {
+            throw new IllegalArgumentException("Rows: " + rows);
+        }
+        if (columns <= 0) {
+            throw new IllegalArgumentException("Columns: " + columns);
+        }
+        if (pixels.length != labels.length * rows * columns) {
+            throw new IllegalArgumentException("Pixels: " + pixels.length + " for " + labels.length + " labels");
+        }
+        if (order != null && order.length != rows * columns) {
+            throw new IllegalArgumentException("Order: " + order.length);
+        }
+        if (norms != null && norms.length != labels.length) {
+            throw new IllegalArgumentException("Norms: " + norms.length);
+        }
+
+        this.rows = rows;
+        this.columns = columns;
+        this.count = labels.length;
+        this.pixels = pixels;
+        this.labels = labels;
+        this.order = order;
+        this.norms = norms;
+    }
+
+    public Dataset(Image[] images) {
+        this(images[0].rows(), images[0].columns(), flatten(images), labels(images));
+    }
+
+    private static byte[] flatten(Image[] images) {
+        int rows = images[0].rows();
+        int columns = images[0].columns();
+        byte[] pixels = new byte[images.length * rows * columns];
+
+        for (int i = 0; i < images.length; i++) {
+            Image image = images[i];
+            if (image.rows() != rows || image.columns() != columns) {
+                throw new IllegalArgumentException("Image " + i + ": " + image.rows() + " x " + image.columns());
+            }
+            for (int row = 0; row < rows; row++) {
+                System.arraycopy(image.pixels()[row], 0, pixels, (i * rows + row) * columns, columns);
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] labels(Image[] images) {
+        byte[] labels = new byte[images.length];
+        for (int i = 0; i < images.length; i++) {
+            labels[i] = (byte) images[i].digit();
+        }
+        return labels;
+    }
+
+    private int[] varianceOrder() {
+        // Pixel positions sorted by decreasing variance over the whole set.
+        // Distances accumulate fastest over these pixels, so visiting them
+        // first lets an early-abandoning scan give up on a sample soonest.
+        int size = this.size();
+        long[] sums = new long[size];
+        long[] squares = new long[size];
+
+        for (int offset = 0; offset < this.pixels.length; offset += size) {
+            for (int p = 0; p < size; p++) {
+                int pixel = this.pixels[offset + p] & 0xFF;
+                sums[p] += pixel;
+                squares[p] += pixel * pixel;
+            }
+        }
+
+        // count^2 * variance, which orders the same way as the variance
+        long[] variances = new long[size];
+        Integer[] order = new Integer[size];
+        for (int p = 0; p < size; p++) {
+            variances[p] = this.count * squares[p] - sums[p] * sums[p];
+            order[p] = p;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(variances[b], variances[a]));
+
+        int[] result = new int[size];
+        for (int p = 0; p < size; p++) {
+            result[p] = order[p];
+        }
+        return result;
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    public int columns() {
+        return this.columns;
+    }
+
+    public int count() {
+        return this.count;
+    }
+
+    public int size() {
+        // Number of pixels in one image
+        return this.rows * this.columns;
+    }
+
+    public byte[] pixels() {
+        return this.pixels;
+    }
+
+    public byte[] labels() {
+        return this.labels;
+    }
+
+    public int[] order() {
+        // Pixel positions (row * columns + column) by decreasing variance,
+        // computed once, the first time they are needed
+        int[] order = this.order;
+        if (order == null) {
+            this.order = order = this.varianceOrder();
+        }
+        return order;
+    }
+
+    public int[] norms() {
+        // Squared Euclidean norm of every sample (sum of pixel^2), computed
+        // once, in parallel, the first time they are needed
+        int[] norms = this.norms;
+        if (norms == null) {
+            int size = this.size();
+            int[] result = new int[this.count];
+            IntStream.range(0, this.count).parallel().forEach(i -> {
+                int norm = 0;
+                for (int p = i * size, end = p + size; p < end; p++) {
+                    int pixel = this.pixels[p] & 0xFF;
+                    norm += pixel * pixel;
+                }
+                result[i] = norm;
+            });
+            this.norms = norms = result;
+        }
+        return norms;
+    }
+
+    public int offset(int index) {
+        return index * this.size();
+    }
+
+    public int digit(int index) {
+        return this.labels[index];
+    }
+
+    public int get(int index, int row, int column) {
+        return this.pixels[this.offset(index) + row * this.columns + column] & 0xFF;
+    }
+
+    public Image image(int index) {
+        // Materialize a single sample as an Image (a copy, not a view)
+        // whose id is its index in the dataset
+        byte[][] result = new byte[this.rows][];
+        int offset = this.offset(index);
+        for (int row = 0; row < this.rows; row++) {
+            result[row] = Arrays.copyOfRange(this.pixels, offset + row * this.columns, offset + (row + 1) * this.columns);
+        }
+        return new Image(result, this.digit(index), index);
+    }
+
+    public Dataset subset(int[] indexes) {
+        // A new dataset holding copies of the given samples, in that order
+        int size = this.size();
+        byte[] pixels = new byte[indexes.length * size];
+        byte[] labels = new byte[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            System.arraycopy(this.pixels, this.offset(indexes[i]), pixels, i * size, size);
+            labels[i] = this.labels[indexes[i]];
+        }
+        return new Dataset(this.rows, this.columns, pixels, labels);
+    }
+
+    public void write(String imageFileName, String labelFileName) throws IOException {
+        // Save as an MNIST (IDX) image file and label file, readable by
+        // BufferedReader and MappedReader
+        try (DataOutputStream images = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(imageFileName)));
+             DataOutputStream labels = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(labelFileName)))) {
+            images.writeInt(2051);
+            images.writeInt(this.count);
+            images.writeInt(this.rows);
+            images.writeInt(this.columns);
+            images.write(this.pixels);
+
+            labels.writeInt(2049);
+            labels.writeInt(this.count);
+            labels.write(this.labels);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+public interface DistanceKernel {
+
+    // Computes the squared Euclidean distance between a query image and one
+    // sample of a Dataset.  Both are row-major arrays of unsigned pixel bytes;
+    // the sample starts at pixels[offset] and has query.length pixels.
+
+    public int distance(byte[] query, byte[] pixels, int offset);
+
+    public static DistanceKernel select() {
+        // Use the SIMD kernel when the JVM was started with the Vector API
+        // module (--add-modules jdk.incubator.vector), otherwise the scalar loop.
+        // -Dkernel=scalar or -Dkernel=vector forces the choice.
+        String kernel = System.getProperty("kernel", "auto");
+
+        if (!kernel.equals("scalar")) {
+            try {
+                // Named relative to this class, which is not in the default
+                // package when compiled into the benchmarks
+                String name = DistanceKernel.class.getName().replace("DistanceKernel", "VectorKernel");
+                return (DistanceKernel) Class.forName(name).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                if (kernel.equals("vector")) {
+                    throw new IllegalStateException("Vector API not available: " + e);
+                }
+            }
+        }
+        return new ScalarKernel();
+    }
+}
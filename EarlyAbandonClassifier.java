@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.LongAdder;
+
+public class EarlyAbandonClassifier implements MNIST_GUI.Classifier {
+
+    // KNN that stops computing the distance to a training sample as soon as
+    // the partial sum exceeds the distance of the current k-th neighbor: such
+    // a sample can no longer be one of the k nearest.  Pixels are visited in
+    // decreasing order of their variance over the training set (see
+    // Dataset.order) so that the sum grows, and the scan gives up, as early as
+    // possible.  The training pixels are copied once in that order so the
+    // inner loop reads both arrays sequentially.  The neighbors, and so the
+    // classification, are exactly those of Main.smallest.
+
+    private static final int BLOCK = 16; // pixels between abandonment checks
+
+    private final Dataset dataset;
+    private final int size;
+    private final byte[] pixels; // training pixels, each sample permuted by dataset.order()
+    private final LongAdder visited = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    public EarlyAbandonClassifier(Dataset dataset, int size) {
+        this.dataset = dataset;
+        this.size = size;
+
+        int[] order = dataset.order();
+        int length = dataset.size();
+        byte[] source = dataset.pixels();
+        this.pixels = new byte[source.length];
+        for (int offset = 0; offset < source.length; offset += length) {
+            for (int p = 0; p < length; p++) {
+                this.pixels[offset + p] = source[offset + order[p]];
+            }
+        }
+    }
+
+    public Neighbors nearest(Image image) {
+        int[] order = this.dataset.order();
+        int length = this.dataset.size();
+        byte[] pixels = this.pixels;
+
+        // Permute the query once so the inner loop reads it sequentially
+        byte[] flat = image.flatten();
+        byte[] query = new byte[length];
+        for (int p = 0; p < length; p++) {
+            query[p] = flat[order[p]];
+        }
+
+        Neighbors neighbors = new Neighbors(this.size);
+        long visited = 0;
+
+        for (int i = 0, offset = 0; i < this.dataset.count(); i++, offset += length) {
+            int limit = neighbors.worst();
+            int sum = 0;
+            int p = 0;
+
+            while (p < length) {
+                int end = Math.min(p + BLOCK, length);
+                for (; p < end; p++) {
+                    int difference = (query[p] & 0xFF) - (pixels[offset + p] & 0xFF);
+                    sum += difference * difference;
+                }
+                if (sum > limit) break;
+            }
+
+            visited += p;
+            if (sum <= limit) {
+                neighbors.insert(sum, i);
+            }
+        }
+
+        this.visited.add(visited);
+        this.total.add((long) this.dataset.count() * length);
+        return neighbors;
+    }
+
+    @Override
+    public int classify(Image image) {
+        return Main.vote(this.nearest(image), this.dataset);
+    }
+
+    public double skipped() {
+        // Fraction of the pixel comparisons avoided so far
+        long total = this.total.sum();
+        return total == 0 ? 0 : 1 - (double) this.visited.sum() / total;
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+public class Evaluator {
+
+    // Classifies a whole labelled test set across all cores and reports the
+    // accuracy, the confusion matrix, the error rate of every digit, the
+    // throughput and the per-image latency percentiles.  Works with any
+    // MNIST_GUI.Classifier so different classifiers can be compared on the
+    // same images.  The images can also come from a Stream (for example
+    // MappedReader.stream()), so a test set need not be held on the heap.
+
+    private final MNIST_GUI.Classifier classifier;
+    private final int threads;
+
+    public Evaluator(MNIST_GUI.Classifier classifier) {
+        this(classifier, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Evaluator(MNIST_GUI.Classifier classifier, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads: " + threads);
+        }
+        this.classifier = classifier;
+        this.threads = threads;
+    }
+
+    public Report evaluate(Image[] images) {
+        return this.evaluate(Arrays.stream(images));
+    }
+
+    public Report evaluate(Stream<Image> images) {
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        long start = System.nanoTime();
+        Results results;
+        try {
+            results = pool.submit(() -> images.parallel().collect(Results::new, this::classify, Results::addAll)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) e.getCause(); // e.g. a bad record in a streamed file
+            }
+            throw new IllegalStateException("Evaluation failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return new Report(Arrays.copyOf(results.digits, results.count), Arrays.copyOf(results.predictions, results.count),
+                Arrays.copyOf(results.latencies, results.count), elapsed);
+    }
+
+    private void classify(Results results, Image image) {
+        long begin = System.nanoTime();
+        int prediction = this.classifier.classify(image);
+        results.add(image.digit(), prediction, System.nanoTime() - begin);
+    }
+
+    private static class Results {
+
+        // Per image outcome only (not the images), grown as needed
+
+        int count;
+        int[] digits = new int[64];
+        int[] predictions = new int[64];
+        long[] latencies = new long[64];
+
+        void add(int digit, int prediction, long latency) {
+            if (this.count == this.digits.length) {
+                this.grow(this.count + 1);
+            }
+            this.digits[this.count] = digit;
+            this.predictions[this.count] = prediction;
+            this.latencies[this.count] = latency;
+            this.count++;
+        }
+
+        void addAll(Results other) {
+            if (this.count + other.count > this.digits.length) {
+                this.grow(this.count + other.count);
+            }
+            System.arraycopy(other.digits, 0, this.digits, this.count, other.count);
+            System.arraycopy(other.predictions, 0, this.predictions, this.count, other.count);
+            System.arraycopy(other.latencies, 0, this.latencies, this.count, other.count);
+            this.count += other.count;
+        }
+
+        private void grow(int minimum) {
+            int length = Math.max(minimum, 2 * this.digits.length);
+            this.digits = Arrays.copyOf(this.digits, length);
+            this.predictions = Arrays.copyOf(this.predictions, length);
+            this.latencies = Arrays.copyOf(this.latencies, length);
+        }
+    }
+
+
+    public static class Report {
+
+        private final int count;
+        private final int errors;
+        private final int[][] confusion; // [actual][predicted]
+        private final int[] totals;      // images per actual digit
+        private final int[] misses;      // errors per actual digit
+        private final long[] latencies;  // sorted, in nanoseconds
+        private final long elapsed;
+
+        public Report(int[] digits, int[] predictions, long[] latencies, long elapsed) {
+            this.count = digits.length;
+            this.confusion = new int[10][10];
+            this.totals = new int[10];
+            this.misses = new int[10];
+
+            int errors = 0;
+            for (int i = 0; i < digits.length; i++) {
+                int actual = digits[i];
+                int predicted = predictions[i];
+                this.totals[actual]++;
+                // A negative prediction (unable to classify) is an error
+                // but has no column in the confusion matrix
+                if (predicted >= 0) {
+                    this.confusion[actual][predicted]++;
+                }
+                if (predicted != actual) {
+                    this.misses[actual]++;
+                    errors++;
+                }
+            }
+            this.errors = errors;
+
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.elapsed = elapsed;
+        }
+
+        public int count() {
+            return this.count;
+        }
+
+        public int errors() {
+            return this.errors;
+        }
+
+        public double accuracy() {
+            return 100.0 * (this.count - this.errors) / this.count;
+        }
+
+        public int[][] confusion() {
+            return this.confusion;
+        }
+
+        public double errorRate(int digit) {
+            return this.totals[digit] == 0 ? 0 : 100.0 * this.misses[digit] / this.totals[digit];
+        }
+
+        public double throughput() {
+            // Images per second over the whole run
+            return this.count / (this.elapsed / 1e9);
+        }
+
+        public double latency(double percentile) {
+            // Latency of a single classification in milliseconds
+            if (this.latencies.length == 0) return 0;
+            int index = (int) Math.ceil(percentile / 100 * this.latencies.length) - 1;
+            index = Math.max(0, Math.min(index, this.latencies.length - 1));
+            return this.latencies[index] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format("Accuracy Rate: %.2f%% Number of errors: %d of %d%n",
+                    this.accuracy(), this.errors, this.count));
+            result.append(String.format("Throughput: %.1f images/s  Latency p50: %.3f ms  p99: %.3f ms%n",
+                    this.throughput(), this.latency(50), this.latency(99)));
+
+            result.append("\nConfusion matrix (rows: actual, columns: predicted)\n     ");
+            for (int predicted = 0; predicted < 10; predicted++) {
+                result.append(String.format("%6d", predicted));
+            }
+            result.append("   error\n");
+            for (int actual = 0; actual < 10; actual++) {
+                result.append(String.format("%5d", actual));
+                for (int predicted = 0; predicted < 10; predicted++) {
+                    result.append(String.format("%6d", this.confusion[actual][predicted]));
+                }
+                result.append(String.format("  %5.2f%%%n", this.errorRate(actual)));
+            }
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.stream.IntStream;
+
+public class HammingClassifier implements MNIST_GUI.Classifier {
+
+    // KNN with a binarized prefilter.
+    //
+    // Every training image is also kept as a packed bit mask of its black
+    // pixels (Image.mask: 13 longs for 28 x 28).  A query is binarized the
+    // same way and all training images are ranked by the Hamming distance
+    // between the masks, which is one XOR and Long.bitCount per word.  Only
+    // the best prefilter images get the exact grayscale distance and the
+    // usual weighted vote.
+
+    private final Dataset dataset;
+    private final int size;
+    private final int prefilter;
+    private final int words;
+    private final long[] masks; // [image * words + word]
+
+    public HammingClassifier(Dataset dataset, int size, int prefilter) {
+        if (prefilter < size) {
+            throw new IllegalArgumentException("Prefilter: " + prefilter);
+        }
+
+        this.dataset = dataset;
+        this.size = size;
+        this.prefilter = prefilter;
+        this.words = (dataset.size() + 63) / 64;
+        this.masks = new long[dataset.count() * this.words];
+
+        IntStream.range(0, dataset.count()).parallel().forEach(i ->
+                pack(dataset.pixels(), dataset.offset(i), dataset.size(), this.masks, i * this.words));
+    }
+
+    private HammingClassifier(HammingClassifier other, int prefilter) {
+        this.dataset = other.dataset;
+        this.size = other.size;
+        this.prefilter = prefilter;
+        this.words = other.words;
+        this.masks = other.masks;
+    }
+
+    public HammingClassifier withPrefilter(int prefilter) {
+        // Same masks, different number of candidates ranked exactly
+        if (prefilter < this.size) {
+            throw new IllegalArgumentException("Prefilter: " + prefilter);
+        }
+        return new HammingClassifier(this, prefilter);
+    }
+
+    private static void pack(byte[] pixels, int offset, int length, long[] masks, int start) {
+        // Same bits as Image.mask
+        for (int i = 0; i < length; i++) {
+            if ((pixels[offset + i] & 0xFF) >= Image.THRESHOLD) {
+                masks[start + (i >>> 6)] |= 1L << i;
+            }
+        }
+    }
+
+    private int hamming(long[] query, int start) {
+        int distance = 0;
+        for (int w = 0; w < this.words; w++) {
+            distance += Long.bitCount(query[w] ^ this.masks[start + w]);
+        }
+        return distance;
+    }
+
+
+    public int[] candidates(Image image) {
+        // The prefilter images closest in Hamming distance, in increasing
+        // index order.  Hamming distances are small integers, so a histogram
+        // gives the cut-off distance without sorting.
+        long[] query = image.mask();
+        int count = this.dataset.count();
+        int limit = Math.min(this.prefilter, count);
+
+        int[] histogram = new int[this.dataset.size() + 2];
+        for (int i = 0, start = 0; i < count; i++, start += this.words) {
+            histogram[this.hamming(query, start)]++;
+        }
+
+        // Everything below the cut-off is taken, and the first images at the
+        // cut-off until the shortlist is full
+        int cutoff = 0;
+        int below = 0;
+        while (below + histogram[cutoff] < limit) {
+            below += histogram[cutoff++];
+        }
+        int atCutoff = limit - below;
+
+        int[] result = new int[limit];
+        int used = 0;
+        for (int i = 0, start = 0; i < count && used < limit; i++, start += this.words) {
+            int distance = this.hamming(query, start);
+            if (distance < cutoff || (distance == cutoff && atCutoff-- > 0)) {
+                result[used++] = i;
+            }
+        }
+        return result;
+    }
+
+    public Neighbors nearest(Image image) {
+        byte[] query = image.flatten();
+        Neighbors neighbors = new Neighbors(this.size);
+        for (int i : this.candidates(image)) {
+            neighbors.insert(Main.kernel.distance(query, this.dataset.pixels(), this.dataset.offset(i)), i);
+        }
+        return neighbors;
+    }
+
+    @Override
+    public int classify(Image image) {
+        return Main.vote(this.nearest(image), this.dataset);
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+
+    // A latency histogram in the style of HdrHistogram: values below 128 get
+    // a bucket each, larger values 64 buckets per power of two, so every
+    // recorded value is known to within 1/64 (about 1.6%) over the whole
+    // range of a long.  Recording is a few shifts and one atomic increment
+    // on a preallocated array (no allocation, no locks), so it is safe and
+    // cheap from any number of threads.
+
+    private static final int EXACT = 128; // values recorded exactly
+    private static final int SUB = 64;    // buckets per power of two above that
+    private static final int BUCKETS = EXACT + 56 * SUB;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return this.name;
+    }
+
+    private static int bucket(long value) {
+        if (value < EXACT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6; // keep the top 7 bits
+        return EXACT + (shift - 1) * SUB + (int) (value >>> shift) - SUB;
+    }
+
+    private static long highest(int bucket) {
+        // Largest value that falls into the bucket
+        if (bucket < EXACT) return bucket;
+        int shift = (bucket - EXACT) / SUB + 1;
+        long top = (bucket - EXACT) % SUB + SUB;
+        return ((top + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        this.counts.incrementAndGet(bucket(value));
+        this.total.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    public long count() {
+        return this.total.sum();
+    }
+
+    public double mean() {
+        long count = this.count();
+        return count == 0 ? 0 : (double) this.sum.sum() / count;
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    public long percentile(double percentile) {
+        // The value below which the given percentage of recordings fall
+        // (within the precision of the buckets)
+        long count = this.count();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += this.counts.get(b);
+            if (seen >= rank) return Math.min(highest(b), this.max());
+        }
+        return this.max();
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            this.counts.set(b, 0);
+        }
+        this.total.reset();
+        this.sum.reset();
+        this.max.reset();
+    }
+
+    @Override
+    public String toString() {
+        // Latencies are recorded in nanoseconds and shown in milliseconds
+        return String.format("%-12s %10d  mean %9.3f  p50 %9.3f  p90 %9.3f  p99 %9.3f  max %9.3f ms",
+                this.name, this.count(), this.mean() / 1e6, this.percentile(50) / 1e6,
+                this.percentile(90) / 1e6, this.percentile(99) / 1e6, this.max() / 1e6);
+    }
+}
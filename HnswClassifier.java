@@ -0,0 +1,474 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+public class HnswClassifier implements MNIST_GUI.Classifier {
+
+    // Approximate KNN over a hierarchical navigable small world graph.
+    //
+    // Every training image is a node on level 0 and, with exponentially
+    // decreasing probability, on the levels above.  Each node links to about
+    // M close nodes per level (2 * M on level 0).  A query walks greedily
+    // from the single top level entry point down to level 1, then runs a
+    // best-first search of width efSearch on level 0.  The k closest nodes
+    // found get the same weighted vote as Main.smallest.  Larger M,
+    // efConstruction and efSearch give better recall but slower queries.
+    //
+    // The graph is built by inserting the images in parallel; each node's
+    // link lists are guarded by the node's own lock.  A built graph can be
+    // saved and loaded again for the same Dataset.
+
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int VERSION = 1;
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final Dataset dataset;
+    private final int size;
+    private final int m;
+    private final int efConstruction;
+    private int efSearch;
+
+    // links[node][level][0] is the number of links, followed by the linked nodes
+    private final int[][][] links;
+    private int entry;
+    private int maxLevel;
+
+    private final ThreadLocal<Visited> visited;
+
+    private static class Visited {
+        // Marks nodes seen during one search; a new generation clears them all
+        final int[] marks;
+        int generation;
+
+        Visited(int count) {
+            this.marks = new int[count];
+        }
+
+        void clear() {
+            if (++this.generation == 0) {
+                Arrays.fill(this.marks, 0);
+                this.generation = 1;
+            }
+        }
+
+        boolean visit(int node) {
+            if (this.marks[node] == this.generation) return false;
+            this.marks[node] = this.generation;
+            return true;
+        }
+    }
+
+
+    public HnswClassifier(Dataset dataset, int size, int m, int efConstruction, int efSearch) {
+        this(dataset, size, m, efConstruction, efSearch, Runtime.getRuntime().availableProcessors());
+    }
+
+    public HnswClassifier(Dataset dataset, int size, int m, int efConstruction, int efSearch, int threads) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M: " + m);
+        }
+        if (efConstruction < m) {
+            throw new IllegalArgumentException("efConstruction: " + efConstruction);
+        }
+
+        this.dataset = dataset;
+        this.size = size;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = checkEfSearch(efSearch);
+        this.visited = ThreadLocal.withInitial(() -> new Visited(dataset.count()));
+
+        // Levels are drawn up front (P(level >= l) = M^-l) so the link
+        // lists of every node exist before any thread links to it
+        int count = dataset.count();
+        this.links = new int[count][][];
+        double scale = 1 / Math.log(m);
+        for (int node = 0; node < count; node++) {
+            double uniform = new SplittableRandom(SEED + node).nextDouble();
+            int level = (int) (-Math.log(1 - uniform) * scale);
+            this.links[node] = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                this.links[node][l] = new int[this.capacity(l) + 1];
+            }
+        }
+
+        this.entry = 0;
+        this.maxLevel = this.level(0);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(1, count).parallel().forEach(this::insert)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Construction interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Construction failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private HnswClassifier(Dataset dataset, int size, int m, int efConstruction, int efSearch,
+                           int[][][] links, int entry, int maxLevel) {
+        this.dataset = dataset;
+        this.size = size;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = checkEfSearch(efSearch);
+        this.links = links;
+        this.entry = entry;
+        this.maxLevel = maxLevel;
+        this.visited = ThreadLocal.withInitial(() -> new Visited(dataset.count()));
+    }
+
+    public int efSearch() {
+        return this.efSearch;
+    }
+
+    public void efSearch(int efSearch) {
+        // Width of the level 0 search; never less than k
+        this.efSearch = checkEfSearch(efSearch);
+    }
+
+    private static int checkEfSearch(int efSearch) {
+        // Not efSearch(int) in the constructors: it can be overridden
+        if (efSearch <= 0) {
+            throw new IllegalArgumentException("efSearch: " + efSearch);
+        }
+        return efSearch;
+    }
+
+    private int capacity(int level) {
+        return level == 0 ? 2 * this.m : this.m;
+    }
+
+    private int level(int node) {
+        return this.links[node].length - 1;
+    }
+
+
+    private int distance(byte[] query, int node) {
+        return Main.kernel.distance(query, this.dataset.pixels(), this.dataset.offset(node));
+    }
+
+    private byte[] sample(int node) {
+        return Arrays.copyOfRange(this.dataset.pixels(), this.dataset.offset(node), this.dataset.offset(node + 1));
+    }
+
+    private static long key(int distance, int node) {
+        // Orders by distance, then by node
+        return ((long) distance << 32) | node;
+    }
+
+    private int[] neighbors(int node, int level) {
+        int[] list = this.links[node][level];
+        synchronized (list) {
+            return Arrays.copyOfRange(list, 1, 1 + list[0]);
+        }
+    }
+
+
+    private int greedy(byte[] query, int node, int level) {
+        // Move to the closest neighbor until no neighbor is closer
+        int best = this.distance(query, node);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int neighbor : this.neighbors(node, level)) {
+                int distance = this.distance(query, neighbor);
+                if (distance < best) {
+                    best = distance;
+                    node = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return node;
+    }
+
+    private long[] search(byte[] query, int start, int ef, int level) {
+        // Best-first search of one level; returns up to ef keys, closest first
+        Visited visited = this.visited.get();
+        visited.clear();
+        visited.visit(start);
+
+        LongHeap candidates = new LongHeap(ef, false);
+        LongHeap results = new LongHeap(ef, true);
+        long first = key(this.distance(query, start), start);
+        candidates.push(first);
+        results.push(first);
+
+        while (candidates.size() > 0) {
+            long candidate = candidates.pop();
+            if (results.size() >= ef && (candidate >>> 32) > (results.peek() >>> 32)) break;
+
+            for (int neighbor : this.neighbors((int) candidate, level)) {
+                if (!visited.visit(neighbor)) continue;
+
+                long key = key(this.distance(query, neighbor), neighbor);
+                if (results.size() < ef || key < results.peek()) {
+                    candidates.push(key);
+                    results.push(key);
+                    if (results.size() > ef) results.pop();
+                }
+            }
+        }
+
+        long[] sorted = results.toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private int[] select(long[] candidates, int capacity) {
+        // Neighbor selection heuristic: take candidates closest first, but
+        // skip one that is closer to an already selected neighbor than to the
+        // new node, which keeps links pointing in different directions.
+        int[] selected = new int[capacity];
+        byte[][] samples = new byte[capacity][];
+        int count = 0;
+
+        for (int i = 0; i < candidates.length && count < capacity; i++) {
+            int node = (int) candidates[i];
+            int distance = (int) (candidates[i] >>> 32);
+            boolean keep = true;
+            for (int j = 0; j < count && keep; j++) {
+                keep = this.distance(samples[j], node) >= distance;
+            }
+            if (keep) {
+                selected[count] = node;
+                samples[count] = this.sample(node);
+                count++;
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    private void link(int node, int neighbor, int level) {
+        // Add neighbor to node's links, pruning them if they are full
+        int[] list = this.links[node][level];
+        synchronized (list) {
+            int count = list[0];
+            for (int i = 1; i <= count; i++) {
+                if (list[i] == neighbor) return;
+            }
+            if (count < list.length - 1) {
+                list[count + 1] = neighbor;
+                list[0] = count + 1;
+                return;
+            }
+
+            byte[] sample = this.sample(node);
+            long[] candidates = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                candidates[i] = key(this.distance(sample, list[i + 1]), list[i + 1]);
+            }
+            candidates[count] = key(this.distance(sample, neighbor), neighbor);
+            Arrays.sort(candidates);
+
+            int[] kept = this.select(candidates, list.length - 1);
+            System.arraycopy(kept, 0, list, 1, kept.length);
+            list[0] = kept.length;
+        }
+    }
+
+    private void insert(int node) {
+        byte[] query = this.sample(node);
+        int level = this.level(node);
+
+        int entry;
+        int top;
+        synchronized (this) {
+            entry = this.entry;
+            top = this.maxLevel;
+        }
+
+        for (int l = top; l > level; l--) {
+            entry = this.greedy(query, entry, l);
+        }
+
+        for (int l = Math.min(level, top); l >= 0; l--) {
+            long[] candidates = Arrays.stream(this.search(query, entry, this.efConstruction, l))
+                    .filter(key -> (int) key != node)
+                    .toArray();
+            int[] selected = this.select(candidates, this.m);
+
+            int[] list = this.links[node][l];
+            synchronized (list) {
+                System.arraycopy(selected, 0, list, 1, selected.length);
+                list[0] = selected.length;
+            }
+            for (int neighbor : selected) {
+                this.link(neighbor, node, l);
+            }
+            entry = (int) candidates[0];
+        }
+
+        if (level > top) {
+            synchronized (this) {
+                if (level > this.maxLevel) {
+                    this.maxLevel = level;
+                    this.entry = node;
+                }
+            }
+        }
+    }
+
+
+    public Neighbors nearest(Image image) {
+        byte[] query = image.flatten();
+        int entry;
+        int top;
+        synchronized (this) {
+            entry = this.entry;
+            top = this.maxLevel;
+        }
+
+        for (int l = top; l > 0; l--) {
+            entry = this.greedy(query, entry, l);
+        }
+
+        Neighbors neighbors = new Neighbors(this.size);
+        for (long key : this.search(query, entry, Math.max(this.efSearch, this.size), 0)) {
+            neighbors.insert((int) (key >>> 32), (int) key);
+        }
+        return neighbors;
+    }
+
+    @Override
+    public int classify(Image image) {
+        return Main.vote(this.nearest(image), this.dataset);
+    }
+
+
+    public void save(String fileName) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(this.m);
+            output.writeInt(this.efConstruction);
+            output.writeInt(this.links.length);
+            synchronized (this) {
+                output.writeInt(this.entry);
+                output.writeInt(this.maxLevel);
+            }
+            for (int node = 0; node < this.links.length; node++) {
+                output.writeByte(this.level(node));
+                for (int l = 0; l <= this.level(node); l++) {
+                    int[] neighbors = this.neighbors(node, l);
+                    output.writeShort(neighbors.length);
+                    for (int neighbor : neighbors) {
+                        output.writeInt(neighbor);
+                    }
+                }
+            }
+        }
+    }
+
+    public static HnswClassifier load(String fileName, Dataset dataset, int size, int efSearch) throws IOException {
+        // Load a graph saved for this dataset
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+            int magic = input.readInt();
+            int version = input.readInt();
+            if (magic != MAGIC || version != VERSION) {
+                throw new BufferedReader.FileFormatException("Not an HNSW graph (version " + VERSION + "): " + fileName);
+            }
+            int m = input.readInt();
+            int efConstruction = input.readInt();
+            int count = input.readInt();
+            if (count != dataset.count()) {
+                throw new BufferedReader.FileFormatException("Graph has " + count + " nodes, dataset " + dataset.count());
+            }
+            int entry = input.readInt();
+            int maxLevel = input.readInt();
+
+            int[][][] links = new int[count][][];
+            for (int node = 0; node < count; node++) {
+                int level = input.readByte();
+                links[node] = new int[level + 1][];
+                for (int l = 0; l <= level; l++) {
+                    int capacity = (l == 0) ? 2 * m : m;
+                    int length = input.readShort();
+                    if (length > capacity) {
+                        throw new BufferedReader.FileFormatException("Too many links: " + length);
+                    }
+                    links[node][l] = new int[capacity + 1];
+                    links[node][l][0] = length;
+                    for (int i = 1; i <= length; i++) {
+                        links[node][l][i] = input.readInt();
+                    }
+                }
+            }
+            return new HnswClassifier(dataset, size, m, efConstruction, efSearch, links, entry, maxLevel);
+        }
+    }
+
+
+    private static class LongHeap {
+
+        // A binary heap of longs; the smallest on top, or the largest if max
+
+        private long[] items;
+        private int size;
+        private final boolean max;
+
+        LongHeap(int capacity, boolean max) {
+            this.items = new long[Math.max(capacity + 1, 16)];
+            this.max = max;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        long peek() {
+            return this.items[0];
+        }
+
+        private boolean above(long a, long b) {
+            return this.max ? a > b : a < b;
+        }
+
+        void push(long item) {
+            if (this.size == this.items.length) {
+                this.items = Arrays.copyOf(this.items, 2 * this.size);
+            }
+            int slot = this.size++;
+            while (slot > 0) {
+                int parent = (slot - 1) / 2;
+                if (!this.above(item, this.items[parent])) break;
+                this.items[slot] = this.items[parent];
+                slot = parent;
+            }
+            this.items[slot] = item;
+        }
+
+        long pop() {
+            long top = this.items[0];
+            long item = this.items[--this.size];
+            int slot = 0;
+            while (true) {
+                int child = 2 * slot + 1;
+                if (child >= this.size) break;
+                if (child + 1 < this.size && this.above(this.items[child + 1], this.items[child])) child++;
+                if (!this.above(this.items[child], item)) break;
+                this.items[slot] = this.items[child];
+                slot = child;
+            }
+            this.items[slot] = item;
+            return top;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(this.items, this.size);
+        }
+    }
+}
@@ -1,4 +1,6 @@
 // nadia iskandar
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Image {
 
     public static final int WHITE = 0;
@@ -6,15 +8,16 @@ public class Image {
     // private static final int UNKNOWN = -1;
     public static final int UNKNOWN = -1;
 
-    private static final int THRESHOLD = 128;
+    static final int THRESHOLD = 128;
 
-    private static int count = 0;
+    private static final AtomicInteger count = new AtomicInteger();
 
     private int id; // index
     private int digit; // what number it is
     private int rows;
     private int columns;
     private byte[][] pixels;
+    private volatile long fingerprint; // content hash, 0 until computed (see fingerprint)
 
     public Image(int rows, int columns, int digit) {
         if (digit < UNKNOWN | digit > 9) {
@@ -27,7 +30,7 @@ public class Image {
             throw new IllegalArgumentException("Columns: " + columns);
         }
 
-        this.id = Image.count++;
+        this.id = Image.count.getAndIncrement();
         this.digit = digit;
         this.rows = rows;
         this.columns = columns;
@@ -39,18 +42,23 @@ public class Image {
         this(rows, columns, UNKNOWN);
     }
 
-    public Image(byte[][] pixels, int digit) {
+    public Image(byte[][] pixels, int digit, int id) {
+        // An image with a given id (e.g. its index in the file it was read from)
         if (digit < UNKNOWN | digit > 9) {
             throw new IllegalArgumentException("Digit: " + digit);
         }
 
-        this.id = Image.count++;
+        this.id = id;
         this.digit = digit;
         this.rows = pixels.length;
         this.columns = pixels[0].length;
         this.pixels = pixels;
     }
 
+    public Image(byte[][] pixels, int digit) {
+        this(pixels, digit, Image.count.getAndIncrement());
+    }
+
     public Image(byte[][] pixels) {
         this(pixels, UNKNOWN);
     }
@@ -75,6 +83,15 @@ public class Image {
         return this.pixels;
     }
 
+    public byte[] flatten() {
+        // Copy the pixels into a single row-major array (the layout used by Dataset)
+        byte[] result = new byte[this.rows * this.columns];
+        for (int row = 0; row < this.rows; row++) {
+            System.arraycopy(this.pixels[row], 0, result, row * this.columns, this.columns);
+        }
+        return result;
+    }
+
     public int get(int row, int column) {
         int value = this.pixels[row][column];
         return (value < 0) ? value + 256 : value;
@@ -85,6 +102,7 @@ public class Image {
             throw new IllegalArgumentException("Pixel: " + value);
         }
         this.pixels[row][column] = (byte) value;
+        if (this.fingerprint != 0) this.fingerprint = 0;
     }
 
     public boolean isWhite(int row, int column, int threshold) {
@@ -103,6 +121,21 @@ public class Image {
         return isBlack(row, column, THRESHOLD);
     }
 
+    public long[] mask() {
+        // The black pixels (see isBlack) as a bit set in row-major order:
+        // pixel i is bit i % 64 of word i / 64
+        long[] mask = new long[(this.rows * this.columns + 63) / 64];
+        for (int row = 0; row < this.rows; row++) {
+            for (int col = 0; col < this.columns; col++) {
+                if (isBlack(row, col)) {
+                    int i = row * this.columns + col;
+                    mask[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+        return mask;
+    }
+
 
     public boolean equals(Image other) {
         if (this.rows != other.rows) return false;
@@ -123,15 +156,56 @@ public class Image {
     }
 
 
-    @Override
-    public int hashCode() {
-        int hash = this.rows * this.columns;
+    public long fingerprint() {
+        // A 64-bit hash of the size and pixels (not the digit or id), so
+        // that images with the same content have the same fingerprint.  It
+        // is computed once and then remembered until set changes a pixel;
+        // writing through the array returned by pixels() is not noticed.
+        long hash = this.fingerprint;
+        if (hash == 0) {
+            hash = this.hash();
+            this.fingerprint = hash;
+        }
+        return hash;
+    }
+
+    private long hash() {
+        // MurmurHash3-style mixing of the pixels, eight at a time
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+
+        long hash = 0x9e3779b97f4a7c15L ^ ((long) this.rows << 32 | this.columns);
+        long word = 0;
+        int used = 0;
+
         for (int row = 0; row < this.rows; row++) {
             for (int col = 0; col < this.columns; col++) {
-                hash = 256 * hash + this.pixels[row][col];
+                word = (word << 8) | (this.pixels[row][col] & 0xFF);
+                if (++used == 8) {
+                    hash ^= Long.rotateLeft(word * c1, 31) * c2;
+                    hash = Long.rotateLeft(hash, 27) * 5 + 0x52dce729;
+                    word = 0;
+                    used = 0;
+                }
             }
         }
-        return this.digit * hash;
+        hash ^= Long.rotateLeft(word * c1, 31) * c2;
+        hash ^= (long) this.rows * this.columns;
+
+        // Final avalanche
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53e1a85L;
+        hash ^= hash >>> 33;
+        return (hash == 0) ? 1 : hash;
+    }
+
+    @Override
+    public int hashCode() {
+        // Consistent with equals (same pixels and digit)
+        long hash = this.fingerprint();
+        return 31 * (int) (hash ^ (hash >>> 32)) + this.digit;
     }
 
 
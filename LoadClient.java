@@ -0,0 +1,102 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoadClient {
+
+    // Load generator for ClassifierServer.  Opens a number of concurrent
+    // connections, each sending test images one request at a time, and
+    // reports throughput, latency percentiles and accuracy:
+    //
+    //    java LoadClient [host] [port] [connections] [requests per connection]
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : Main.SERVER_PORT;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        Dataset tests = new MappedReader(Main.TEST_IMAGES, Main.TEST_LABELS).read();
+        System.out.println(run(host, port, connections, requests, tests));
+    }
+
+    public static String run(String host, int port, int connections, int requests, Dataset tests)
+            throws InterruptedException, IOException {
+        Histogram latencies = new Histogram("requests");
+        AtomicInteger correct = new AtomicInteger();
+        ExecutorService threads = ClassifierServer.threads();
+
+        long start = System.nanoTime();
+        Future<?>[] clients = new Future<?>[connections];
+        for (int c = 0; c < connections; c++) {
+            int client = c;
+            clients[c] = threads.submit(() -> {
+                try {
+                    correct.addAndGet(connect(host, port, client, requests, tests, latencies));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        try {
+            for (Future<?> client : clients) {
+                client.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IllegalStateException("Client failed", e.getCause());
+        } finally {
+            threads.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long total = latencies.count();
+        return String.format("%d connections x %d requests: %.1f requests/s  p50: %.3f ms  p99: %.3f ms  accuracy: %.2f%%",
+                connections, requests, total / (elapsed / 1e9),
+                latencies.percentile(50) / 1e6, latencies.percentile(99) / 1e6,
+                total == 0 ? 0 : 100.0 * correct.get() / total);
+    }
+
+    private static int connect(String host, int port, int client, int requests, Dataset tests, Histogram latencies)
+            throws IOException {
+        int correct = 0;
+        int size = tests.size();
+
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            for (int r = 0; r < requests; r++) {
+                int index = (client * requests + r) % tests.count();
+                long begin = System.nanoTime();
+
+                output.writeInt(size);
+                output.write(tests.pixels(), tests.offset(index), size);
+                output.flush();
+
+                // Every response, -1 included, ends with k neighbors and
+                // ten votes; read them fully to stay in step with the stream
+                int digit = input.readInt();
+                int k = input.readInt();
+                input.readFully(new byte[8 * k + 8 * 10]);
+
+                latencies.record(System.nanoTime() - begin);
+                if (digit == tests.digit(index)) correct++;
+            }
+            output.writeInt(0);
+            output.flush();
+        }
+        return correct;
+    }
+}
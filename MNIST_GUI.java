@@ -4,6 +4,11 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import javax.swing.*;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class MNIST_GUI {
 
@@ -11,21 +16,50 @@ public class MNIST_GUI {
     // using the mouse.  The user can then request that the image be classified
     // as a digit (0 - 9) using a MNIST-based classifier.  The result will be
     // displayed as a label below the grapics panel.
+    //
+    // Classification never runs on the Swing event thread: it is handed to a
+    // background thread and the result is posted back with invokeLater.  In
+    // live mode every stroke (re)starts a short debounce timer, and when it
+    // fires the current drawing is classified.  A classification made stale
+    // by a newer request is cancelled by interrupting it (the scans check for
+    // interrupts and give up with a CancellationException).
+
+    private static final int DEBOUNCE = 150; // ms after the last mouse movement
+
+    // The preprocessing used when none is given (for a raw training set)
+    public static final Pipeline DEFAULT = Pipeline.none().normalize().center();
 
     private final int rows;     // Number of rows in an MNIST image
     private final int columns;  // Number of cols in an MNIST image
     private final int scale;    // Scaling factor for drawing and image on screen
     private final Classifier classifier; // The KNN based classification algorithm
+    private final Pipeline pipeline;     // Preprocessing of the drawn image
 
     private JFrame frame;
     private Label digitLabel;
     private DrawingPanel drawingPanel;
+    private JCheckBox liveBox;
+
+    private final ExecutorService worker;  // runs the classifications
+    private final Timer debounce;          // live mode: classify when drawing pauses
+    private Future<?> pending;             // the latest classification (EDT only)
+    private int generation;                // number of the latest request (EDT only)
 
     public static interface Classifier {
         // An interface to the user's digit classification algorithm.
         // Returns the value (0-9) of the classification but may return
         // a negative value if it was unable to classify the image as a digit.
         public int classify(Image image);
+
+        // Classifies several images at once (same results as classifying
+        // them one at a time, which is what this default does).
+        public default int[] classify(Image[] images) {
+            int[] results = new int[images.length];
+            for (int i = 0; i < images.length; i++) {
+                results[i] = this.classify(images[i]);
+            }
+            return results;
+        }
     }
 
     private static abstract class Button extends JButton implements ActionListener {
@@ -52,12 +86,21 @@ public class MNIST_GUI {
         this(title, 28, 28, 20, 35, classifier);
     }
 
+    public MNIST_GUI(String title, Classifier classifier, Pipeline pipeline) {
+        this(title, 28, 28, 20, 35, classifier, pipeline);
+    }
+
     public MNIST_GUI(String title, int scale, int penSize, Classifier classifier) {
         // For us, and MNIST image is always 28 x 28 pixels
         this(title, 28, 28, scale, penSize, classifier);
     }
 
     public MNIST_GUI(String title, int rows, int columns, int scale, int penSize, Classifier classifier) {
+        this(title, rows, columns, scale, penSize, classifier, DEFAULT);
+    }
+
+    public MNIST_GUI(String title, int rows, int columns, int scale, int penSize, Classifier classifier,
+                     Pipeline pipeline) {
 
         // Constructor Parameters:
         //
@@ -67,8 +110,10 @@ public class MNIST_GUI {
         //    Scale       Factor by which the an MNIST image should be scaled up in the drawing area
         //    PenSize     The width of the pen stroke (in pixels)
         //    Classifier  Provides the method to be called to classify an image
+        //    Pipeline    Preprocessing of the drawn image (as applied to the training set)
 
         this.classifier = classifier;
+        this.pipeline = pipeline;
         this.rows = rows;
         this.columns = columns;
         this.scale = scale;
@@ -86,9 +131,20 @@ public class MNIST_GUI {
             }
         };
 
+        this.worker = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "classifier");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY); // drawing comes first
+            return thread;
+        });
+        this.debounce = new Timer(DEBOUNCE, event -> this.classifyLater());
+        this.debounce.setRepeats(false);
+
         JButton clearButton = new Button("Clear") {
             @Override
             public void actionPerformed(ActionEvent event) {
+                debounce.stop();
+                cancel();
                 drawingPanel.clear();
                 digitLabel.clear();
             }
@@ -97,11 +153,13 @@ public class MNIST_GUI {
         JButton classifyButton = new Button("Classify") {
             @Override
             public void actionPerformed(ActionEvent event) {
-                Image image = drawingPanel.getImage();
-                digitLabel.set(classifier.classify(image));
+                debounce.stop();
+                classifyLater();
             }
         };
 
+        this.liveBox = new JCheckBox("Live");
+
         // The window consists of three panels:
         //
         //   Top      The drawing area in which the user draws a digit to be classified
@@ -118,6 +176,7 @@ public class MNIST_GUI {
         buttonPanel.setLayout(new BoxLayout(buttonPanel, BoxLayout.X_AXIS));
         buttonPanel.add(clearButton);
         buttonPanel.add(classifyButton);
+        buttonPanel.add(liveBox);
 
         // Bundle these three panels into one content panel.
         // And the establish the frame/window.
@@ -137,6 +196,45 @@ public class MNIST_GUI {
     }
 
 
+    private void cancel() {
+        // Forget the latest request (on the EDT)
+        this.generation++;
+        if (this.pending != null) {
+            this.pending.cancel(true);
+            this.pending = null;
+        }
+    }
+
+    private void classifyLater() {
+        // Classify the current drawing in the background (called on the EDT).
+        // The snapshot of the drawing is taken here, so the user can go on
+        // drawing while it is classified.
+        this.cancel();
+        int request = this.generation;
+        Image image = this.drawingPanel.getImage();
+
+        this.pending = this.worker.submit(() -> {
+            try {
+                int digit = this.classifier.classify(image);
+                SwingUtilities.invokeLater(() -> {
+                    if (request == this.generation) {
+                        this.digitLabel.set(digit);
+                    }
+                });
+            } catch (CancellationException e) {
+                // Superseded by a newer request
+            }
+        });
+    }
+
+    private void drawn() {
+        // Called on the EDT after every stroke segment
+        if (this.liveBox.isSelected()) {
+            this.debounce.restart();
+        }
+    }
+
+
     private class DrawingPanel extends JPanel implements MouseListener, MouseMotionListener {
 
         // A panel on which a user can draw using the mouse.
@@ -145,6 +243,9 @@ public class MNIST_GUI {
         private int beginY = -1;     // Keep track of the last Y-coord when mouse was pressed
         private final Stroke stroke; // The shape and characteristics of the pen.
         private final BufferedImage image; // The image backing store
+        private final int[] sums;          // Reused by downsample (one row of boxes)
+        private final byte[] pixels;       // Reused for the downsampled drawing (row-major)
+        private final byte[] scratch;      // Reused by the pipeline
 
         public DrawingPanel(int height, int width, int penSize) {
             super();
@@ -156,6 +257,9 @@ public class MNIST_GUI {
 
             this.stroke = new BasicStroke(penSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
             this.image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            this.sums = new int[MNIST_GUI.this.columns];
+            this.pixels = new byte[MNIST_GUI.this.rows * MNIST_GUI.this.columns];
+            this.scratch = new byte[this.pixels.length];
         }
 
         @Override
@@ -230,6 +334,7 @@ public class MNIST_GUI {
                 g.dispose();
 
                 this.repaint();
+                drawn();
             }
 
             this.beginX = endX;
@@ -242,136 +347,69 @@ public class MNIST_GUI {
 
 
         public Image getImage() {
-            // Turn the drawing into and MNIST-style image.
-            // We really should crop to a bounding box for the image
-            // but this only matters if the user draws a small image
+            // Turn the drawing into and MNIST-style image, then run the
+            // preprocessing pipeline on it (by default: maximize the contrast
+            // and recenter the image so that its center of mass is at the
+            // center; it has to be the pipeline the training set went through).
+            // Both work in place on the panel's buffers (the pipeline times its
+            // own steps); only the returned image is new, as it goes to the
+            // classifier thread while the user keeps drawing.
             MNIST_GUI gui = MNIST_GUI.this;
-            Image result = new Image(gui.rows, gui.columns, Image.UNKNOWN);
-            BufferedImage scaled = scale(this.image, gui.rows, gui.columns);
-
-            for (int row = 0; row < gui.rows; row++) {
-                for (int col = 0; col < gui.columns; col++) {
-                    int gray = getGray(scaled, row, col);
-                    result.set(row, col, gray);
-                }
-            }
-
-            // Maximize the contrast (utilize the full range of gray intensities).
-            // and the recenter the image so that its center of mass is at the center.
-            return center(brighten(result));
-        }
-    }
-
-
-    private static int RGBtoGray(int rgb) {
-        // MNIST gray scale is inverted wrt to the GUI gray scale
-        // MNIST: White = 0, Black = 255; GUI: White = 255, Black = 0
-        int red = (rgb >> 16) & 0xFF;
-        int green = (rgb >> 8) & 0xFF;
-        int blue = rgb & 0xFF;
-        int gray = (red + green + blue) / 3;
-        return 255 - gray;
-    }
-
-    private static int getGray(BufferedImage image, int row, int column) {
-        int rgb = image.getRGB(column, row);
-        return RGBtoGray(image.getRGB(column, row));
-    }
-
-
-    private static BufferedImage scale(BufferedImage image, int height, int width) {
-        // Resize (downsize) the image buffer to new dimensions (usually to 28 x 28).
-        final int scaling = java.awt.Image.SCALE_SMOOTH;
-        BufferedImage scaled = new BufferedImage(width, height, image.getType());
-        Graphics2D g = scaled.createGraphics();
-        g.drawImage(image.getScaledInstance(width, height, scaling), 0, 0, null);
-        g.dispose();
-        return scaled;
-    }
-
-
-    private static Image brighten(Image image) {
-        // Restore full dynamic constrast range to the image
-        // It is reduced by the scaling/resizing operation
-        int rows = image.rows();
-        int columns = image.columns();
 
-        int max = 0;
-        int min = 255;
+            long start = Metrics.start();
+            downsample(this.image, this.pixels, gui.rows, gui.columns, this.sums);
+            Metrics.stop(Metrics.SCALE, start);
 
-        for (int row = 0; row < rows; row++) {
-            for (int col = 0; col < columns; col++) {
-                int pixel = image.get(row, col);
-                if (pixel > max) max = pixel;
-                if (pixel < min) min = pixel;
-            }
-        }
+            gui.pipeline.apply(this.pixels, gui.rows, gui.columns, this.scratch);
 
-        if (max == min) return image;
-
-        Image result = new Image(rows, columns, image.digit());
-        for (int row = 0; row < rows; row++) {
-            for (int col = 0; col < columns; col++) {
-                int pixel = image.get(row, col);
-                pixel = min + 255 * (pixel - min) / (max - min);
-                result.set(row, col, pixel);
+            byte[][] result = new byte[gui.rows][];
+            for (int row = 0; row < gui.rows; row++) {
+                result[row] = Arrays.copyOfRange(this.pixels, row * gui.columns, (row + 1) * gui.columns);
             }
+            return new Image(result);
         }
-
-        return result;
     }
 
 
-    private static int get(Image image, int row, int col) {
-        if (row < 0 || row >= image.rows() || col < 0 || col >= image.columns()) {
-            return 0; // WHITE (MNIST)
-        } else {
-            return image.get(row, col);
+    public static void downsample(BufferedImage image, byte[] target, int rows, int columns, int[] sums) {
+        // Area-average (box filter) reduction of a TYPE_BYTE_GRAY image to
+        // rows x columns, reading the raster bytes directly, into the
+        // row-major target.  Each target pixel is the mean of its box of
+        // source pixels, inverted to the MNIST gray scale.  When the sizes do
+        // not divide evenly the boxes differ in size by one source pixel.
+        // sums must hold columns values; it is reused so nothing is allocated.
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            throw new IllegalArgumentException("Image type: " + image.getType());
         }
-    }
-
-    private static Image center(Image image) {
-        // Recenter the image so that its center of mass is in the middle of the image
-        int rows = image.rows();
-        int columns = image.columns();
-
-        int sum = 0;
-        int rowSum = 0;
-        int colSum = 0;
-
-        // Compute the center of mass.
+        WritableRaster raster = image.getRaster();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+        int width = image.getWidth();
+        int height = image.getHeight();
 
         for (int row = 0; row < rows; row++) {
-            for (int col = 0; col < columns; col++) {
-                int pixel = image.get(row, col);
-                rowSum += row * pixel;
-                colSum += col * pixel;
-                sum += pixel;
+            int top = row * height / rows;
+            int bottom = (row + 1) * height / rows;
+            Arrays.fill(sums, 0, columns, 0);
+
+            for (int y = top; y < bottom; y++) {
+                int line = y * stride;
+                for (int col = 0; col < columns; col++) {
+                    int left = col * width / columns;
+                    int right = (col + 1) * width / columns;
+                    int sum = 0;
+                    for (int x = left; x < right; x++) {
+                        sum += data[line + x] & 0xFF;
+                    }
+                    sums[col] += sum;
+                }
             }
-        }
 
-        if (sum == 0) return image;
-
-        int centerRow = rows / 2;
-        int centerCol = columns / 2;
-
-        int centerOfMassRow = rowSum / sum;
-        int centerOfMassCol = colSum / sum;
-
-        int rowShift = centerRow - centerOfMassRow;
-        int colShift = centerCol - centerOfMassCol;
-
-        // Shift the image so that the center of mass is now
-        // at the center pixel of the image.
-
-        Image result = new Image(rows, columns, image.digit());
-        for (int row = 0; row < rows; row++) {
             for (int col = 0; col < columns; col++) {
-                int pixel = get(image, row - rowShift, col - colShift);
-                result.set(row, col, pixel);
+                int area = (bottom - top) * ((col + 1) * width / columns - col * width / columns);
+                int gray = (area == 0) ? 255 : (sums[col] + area / 2) / area;
+                target[row * columns + col] = (byte) (255 - gray);
             }
         }
-
-        return result;
     }
 }
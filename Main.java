@@ -1,6 +1,20 @@
 // Nadia Iskandar
 public class Main {
-    public static Image[] array;
+    public static final String TRAIN_IMAGES = "train-images.idx3-ubyte";
+    public static final String TRAIN_LABELS = "train-labels.idx1-ubyte";
+    public static final String TEST_IMAGES = "t10k-images.idx3-ubyte";
+    public static final String TEST_LABELS = "t10k-labels.idx1-ubyte";
+    public static final String TRAIN_SNAPSHOT = "train.snapshot";
+    public static final String CONDENSED_IMAGES = "condensed-images.idx3-ubyte";
+    public static final String CONDENSED_LABELS = "condensed-labels.idx1-ubyte";
+    public static final int SERVER_PORT = 7070;
+
+    public static Dataset dataset;
+    // -Dk=<neighbors> for every classifier started here (see java Main sweep)
+    public static int k = Integer.getInteger("k", 4);
+    public static DistanceKernel kernel = DistanceKernel.select();
+    // -Ddistance=dot: scan with precomputed norms and a sparse dot product (SparseQuery)
+    public static boolean dotProduct = System.getProperty("distance", "direct").equals("dot");
     public static int distance(Image image1, Image image2) {
         int sum = 0;
         int difference;
@@ -40,6 +54,39 @@ public class Main {
 
     }
 
+    public static int distance(byte[] query, byte[] pixels, int offset) {
+        // Same as distance(Image, Image) but against a sample stored in a Dataset
+        int sum = 0;
+        int difference;
+
+        for (int i = 0; i < query.length; i++) {
+            difference = (query[i] & 0xFF) - (pixels[offset + i] & 0xFF);
+            sum += difference * difference;
+        }
+
+        return sum;
+    }
+
+    public static Image smallOneMin(Image originalImage, Dataset trainImages) {
+        byte[] query = originalImage.flatten();
+        byte[] pixels = trainImages.pixels();
+        int size = trainImages.size();
+        int distance;
+        int minDistance = Integer.MAX_VALUE;
+        int minDistanceSlot = 0;
+
+        for (int i = 0, offset = 0; i < trainImages.count(); i++, offset += size) {
+            distance = kernel.distance(query, pixels, offset);
+
+            if (distance < minDistance) {
+                minDistance = distance;
+                minDistanceSlot = i;
+            }
+        }
+
+        return trainImages.image(minDistanceSlot);
+    }
+
 
 
 
@@ -77,19 +124,71 @@ public class Main {
         }
 
 
-        // array that stores all the votes
-        double[] numbers = new double[10];
-        double sum = 0;
+        int[] digits = new int[size];
+        for (int k = 0; k < size; k++) {
+            digits[k] = imageArray[k].digit();
+        }
 
-        for (int j = 0; j < size; j++) {
-            sum += distances[j];
+        return vote(digits, distances);
+    }
+
+    public static int smallest(Image originalImage, Dataset trainImages, int size) {
+        // Same selection as smallest(Image, Image[], int) but a single linear
+        // scan over the flat pixel block of the dataset
+        Neighbors neighbors = new Neighbors(size);
+        long start = Metrics.start();
+        scan(originalImage.flatten(), trainImages, 0, trainImages.count(), neighbors);
+        Metrics.stop(Metrics.SCAN, start);
+
+        start = Metrics.start();
+        int digit = vote(neighbors, trainImages);
+        Metrics.stop(Metrics.VOTE, start);
+        return digit;
+    }
+
+    static final int INTERRUPT_CHECK = 1023; // check every 1024 samples
+
+    static void checkInterrupt() {
+        // Lets a scan be cancelled by interrupting the thread running it
+        if (Thread.currentThread().isInterrupted()) {
+            throw new java.util.concurrent.CancellationException("Scan interrupted");
         }
+    }
 
-        for (int k = 0; k < size; k++) {
-            // Weighted votes
-            numbers[imageArray[k].digit()] += sum / distances[k]; 
+    public static void scan(byte[] query, Dataset trainImages, int from, int to, Neighbors neighbors) {
+        // Offer the samples from (inclusive) ... to (exclusive) to the neighbors.
+        // Throws CancellationException if the thread is interrupted meanwhile.
+        if (dotProduct) {
+            new SparseQuery(query).scan(trainImages, from, to, neighbors);
+            return;
         }
 
+        byte[] pixels = trainImages.pixels();
+        int length = trainImages.size();
+        int distance;
+        int inserts = 0;
+
+        for (int i = from, offset = trainImages.offset(from); i < to; i++, offset += length) {
+            if ((i & INTERRUPT_CHECK) == 0) checkInterrupt();
+            distance = kernel.distance(query, pixels, offset);
+
+            if (distance <= neighbors.worst()) {
+                neighbors.insert(distance, i);
+                inserts++;
+            }
+        }
+        Metrics.count(Metrics.DISTANCES, to - from);
+        Metrics.count(Metrics.INSERTS, inserts);
+    }
+
+    public static int vote(Neighbors neighbors, Dataset trainImages) {
+        return vote(neighbors.digits(trainImages), neighbors.distances());
+    }
+
+    public static int vote(int[] digits, int[] distances) {
+        // array that stores all the votes
+        double[] numbers = votes(digits, distances);
+
         double max = Integer.MIN_VALUE;
         int index = -1;
 
@@ -108,43 +207,109 @@ public class Main {
         return index;
     }
 
+    public static double[] votes(int[] digits, int[] distances) {
+        // The weighted vote of the neighbors for each digit
+        double[] numbers = new double[10];
+        double sum = 0;
 
-    public static void main(String[] args) {
+        for (int j = 0; j < distances.length; j++) {
+            sum += distances[j];
+        }
 
-        try {
+        for (int k = 0; k < distances.length; k++) {
+            // Weighted votes
+            numbers[digits[k]] += sum / distances[k];
+        }
 
-            BufferedReader trainImages = new BufferedReader("train-images.idx3-ubyte",
-                    "train-labels.idx1-ubyte");
+        return numbers;
+    }
 
-            BufferedReader testImages = new BufferedReader("t10k-images.idx3-ubyte",
-                    "t10k-labels.idx1-ubyte");
 
-            array = trainImages.read();
-            Image[] accuracyArray = testImages.read();
+    static String fileName(String name, Pipeline pipeline) {
+        // The file for data preprocessed by the pipeline, e.g.
+        // train.crop-rescale-20-normalize-center.snapshot for train.snapshot
+        if (pipeline.isEmpty()) return name;
+        String steps = pipeline.toString().replaceAll("[^a-z0-9]+", "-").replaceAll("-$", "");
+        int extension = name.lastIndexOf('.');
+        return name.substring(0, extension) + "." + steps + name.substring(extension);
+    }
 
-            Classifier c = new Classifier();
-            MNIST_GUI gui = new MNIST_GUI("Iskandar", c);
+    public static void main(String[] args) {
 
-            double errors = 0;
-/*
-            Code to test againts the dataset
-            for (int i = 0; i < accuracyArray.length; i++) {
+        try {
 
-                if (i % 10 == 0) {
-                    System.out.println(i + " " + errors + " errors");
-                }
+            // Decoded (and preprocessed) training set from the snapshot, rebuilt
+            // if the IDX files changed.  -Dpipeline=crop,rescale(20),normalize,center
+            // preprocesses the training set and every query the same way.
+            Pipeline pipeline = Pipeline.parse(System.getProperty("pipeline", "none"));
+            dataset = Snapshot.open(fileName(TRAIN_SNAPSHOT, pipeline), TRAIN_IMAGES, TRAIN_LABELS, pipeline);
+
+            if (args.length > 0 && args[0].equals("condense")) {
+                // Build the smaller reference set used with -Dreference=condensed
+                // (named after the pipeline, like the snapshot)
+                //    java Main condense [images per digit]
+                int perDigit = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+                Dataset condensed = Condenser.edit(Condenser.prototypes(dataset, perDigit, 10), 4);
+                condensed.write(fileName(CONDENSED_IMAGES, pipeline), fileName(CONDENSED_LABELS, pipeline));
+                System.out.println("Condensed " + dataset.count() + " images to " + condensed.count());
+                return;
+            }
 
-                if (accuracyArray[i].digit() != c.classify(accuracyArray[i])) {
-                    errors++;
+            if (System.getProperty("reference", "full").equals("condensed")) {
+                dataset = new MappedReader(fileName(CONDENSED_IMAGES, pipeline), fileName(CONDENSED_LABELS, pipeline)).read();
+            }
 
+            if (args.length > 0 && args[0].equals("sweep")) {
+                // Accuracy of every k and vote scheme from one neighbor search
+                //    java Main sweep [kMax]           on the test set
+                //    java Main sweep [kMax] [folds]   cross-validated on the training set
+                int kMax = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+                Sweep sweep = new Sweep(kMax);
+                if (args.length > 2) {
+                    System.out.print(sweep.crossValidate(dataset, Integer.parseInt(args[2])));
+                } else {
+                    Dataset tests = new MappedReader(TEST_IMAGES, TEST_LABELS).read();
+                    System.out.print(sweep.run(dataset, pipeline.apply(tests)));
                 }
+                return;
+            }
 
-            } */
-            // allowing user to try out 
-
-            double accuracyRate = 100 - ((errors / 10000) * 100);
+            Classifier c = new Classifier();
 
-            System.out.println("Accuracy Rate: " + accuracyRate + " Number of errors: " + errors);
+            if (args.length > 0 && args[0].equals("evaluate")) {
+                // Code to test against the dataset (all cores)
+                //    java Main evaluate [threads]
+                int threads = args.length > 1 ? Integer.parseInt(args[1])
+                        : Runtime.getRuntime().availableProcessors();
+                // The test images are decoded as they are classified
+                MappedReader tests = new MappedReader(TEST_IMAGES, TEST_LABELS);
+                System.out.println(new Evaluator(c, threads).evaluate(tests.stream().map(pipeline::apply)));
+            } else if (args.length > 0 && args[0].equals("server")) {
+                // Headless: classify images sent over TCP (see ClassifierServer)
+                //    java Main server [port]
+                // -Dbatch.window=<ms> combines concurrent requests into batches
+                // of up to -Dbatch.size (default 64) images
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : SERVER_PORT;
+                BatchScheduler scheduler = null;
+                if (System.getProperty("batch.window") != null) {
+                    scheduler = new BatchScheduler(new BatchClassifier(dataset, k), Integer.getInteger("batch.size", 64),
+                            Long.parseLong(System.getProperty("batch.window")), java.util.concurrent.TimeUnit.MILLISECONDS);
+                }
+                ClassifierServer server = new ClassifierServer(dataset, k, port, scheduler, pipeline);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        server.close();
+                    } catch (java.io.IOException e) {
+                        System.out.println(e);
+                    }
+                    System.out.println("Stopped, " + server);
+                }));
+                System.out.println("Listening on port " + server.port());
+            } else {
+                // allowing user to try out (one query at a time, so spread it over all cores)
+                MNIST_GUI gui = new MNIST_GUI("Iskandar", new ParallelClassifier(dataset, k),
+                        pipeline.isEmpty() ? MNIST_GUI.DEFAULT : pipeline);
+            }
 
         } catch (Exception e) {
             System.out.println(e);
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class MappedReader {
+
+    // Reads an MNIST (IDX) image file and label file through memory-mapped
+    // buffers.  The headers are checked exactly like BufferedReader does, then
+    // the records are copied out in bulk, in parallel chunks across all cores.
+    // Every image gets its index in the file as id, so the result does not
+    // depend on how the chunks were scheduled.
+    //
+    // stream() visits the same records lazily, one Image at a time, so a
+    // whole file can be processed (also in parallel) without holding it on
+    // the heap.
+
+    private static final int IMAGES_HEADER = 16;
+    private static final int LABELS_HEADER = 8;
+
+    private int rows;
+    private int cols;
+    private int count;
+
+    private final ByteBuffer images;
+    private final ByteBuffer labels;
+
+
+    public MappedReader(String imageFileName, String labelFileName) throws IOException {
+        this.images = map(imageFileName);
+        this.labels = map(labelFileName);
+        this.readImagesHeader();
+        this.readLabelsHeader();
+    }
+
+    private static ByteBuffer map(String fileName) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(Path.of(fileName))) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    public int columns() {
+        return this.cols;
+    }
+
+    public int count() {
+        return this.count;
+    }
+
+
+    private static int readInt(ByteBuffer input, int position) throws IOException {
+        if (input.limit() < position + 4) {
+            throw new BufferedReader.FileFormatException("Truncated header");
+        }
+        return input.getInt(position); // IDX is big-endian, as is ByteBuffer
+    }
+
+
+    private void readImagesHeader() throws IOException {
+        int magic = readInt(this.images, 0);
+        this.count = readInt(this.images, 4);
+        this.rows = readInt(this.images, 8);
+        this.cols = readInt(this.images, 12);
+
+        if (magic != 2051) {
+            throw new BufferedReader.FileFormatException("Bad magic (images): " + magic);
+        } else if (this.count <= 0) {
+            throw new BufferedReader.FileFormatException("Invalid image count: " + this.count);
+        } else if (this.rows <= 0) {
+            throw new BufferedReader.FileFormatException("Invalid row size: " + this.rows);
+        } else if (this.cols <= 0) {
+            throw new BufferedReader.FileFormatException("Invalid col size: " + this.cols);
+        } else if (this.images.limit() < IMAGES_HEADER + (long) this.count * this.rows * this.cols) {
+            throw new BufferedReader.FileFormatException("Truncated image file: " + this.images.limit() + " bytes");
+        }
+    }
+
+
+    private void readLabelsHeader() throws IOException {
+        int magic = readInt(this.labels, 0);
+        int count = readInt(this.labels, 4);
+        if (magic != 2049) {
+            throw new BufferedReader.FileFormatException("Bad magic (labels): " + magic);
+        } else if (count < this.count) {
+            throw new BufferedReader.FileFormatException("Invalid label count: " + count);
+        } else if (this.labels.limit() < LABELS_HEADER + this.count) {
+            throw new BufferedReader.FileFormatException("Truncated label file: " + this.labels.limit() + " bytes");
+        }
+    }
+
+
+    private void readChunk(byte[] pixels, byte[] labels, int from, int to) {
+        // Each chunk works on its own view of the buffers (own position)
+        int size = this.rows * this.cols;
+        this.images.duplicate().position(IMAGES_HEADER + from * size).get(pixels, from * size, (to - from) * size);
+        this.labels.duplicate().position(LABELS_HEADER + from).get(labels, from, to - from);
+
+        for (int i = from; i < to; i++) {
+            if (labels[i] < 0 || labels[i] > 9) {
+                throw new UncheckedIOException(new BufferedReader.FileFormatException("Invalid label: " + labels[i]));
+            }
+        }
+    }
+
+
+    private void decode(byte[] pixels, byte[] labels) throws IOException {
+        int chunks = Math.min(this.count, 4 * Runtime.getRuntime().availableProcessors());
+        try {
+            IntStream.range(0, chunks).parallel().forEach(chunk -> this.readChunk(pixels, labels,
+                    (int) ((long) this.count * chunk / chunks), (int) ((long) this.count * (chunk + 1) / chunks)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+
+    public Dataset read() throws IOException {
+        long start = Metrics.start();
+        byte[] pixels = new byte[this.count * this.rows * this.cols];
+        byte[] labels = new byte[this.count];
+        this.decode(pixels, labels);
+        Dataset dataset = new Dataset(this.rows, this.cols, pixels, labels);
+        Metrics.stop(Metrics.LOAD, start);
+        return dataset;
+    }
+
+
+    public Image[] readImages() throws IOException {
+        // Same records as BufferedReader.read(), with ids 0 ... count - 1
+        long start = Metrics.start();
+        int size = this.rows * this.cols;
+        byte[] pixels = new byte[this.count * size];
+        byte[] labels = new byte[this.count];
+        this.decode(pixels, labels);
+
+        Image[] images = new Image[this.count];
+        IntStream.range(0, this.count).parallel().forEach(i -> {
+            byte[][] image = new byte[this.rows][this.cols];
+            for (int row = 0; row < this.rows; row++) {
+                System.arraycopy(pixels, i * size + row * this.cols, image[row], 0, this.cols);
+            }
+            images[i] = new Image(image, labels[i], i);
+        });
+        Metrics.stop(Metrics.LOAD, start);
+        return images;
+    }
+
+
+    private Image image(int index) throws IOException {
+        // Decode one record straight from the mapped buffers (absolute reads,
+        // so any number of threads can do this at once)
+        int digit = this.labels.get(LABELS_HEADER + index);
+        if (digit < 0 || digit > 9) {
+            throw new BufferedReader.FileFormatException("Invalid label: " + digit);
+        }
+
+        byte[][] pixels = new byte[this.rows][this.cols];
+        int position = IMAGES_HEADER + index * this.rows * this.cols;
+        for (int row = 0; row < this.rows; row++) {
+            for (int col = 0; col < this.cols; col++) {
+                pixels[row][col] = this.images.get(position++);
+            }
+        }
+        return new Image(pixels, digit, index);
+    }
+
+    public Stream<Image> stream() {
+        // All records in file order, ids 0 ... count - 1.  A bad record
+        // surfaces as an UncheckedIOException from the terminal operation.
+        return StreamSupport.stream(new RecordSpliterator(0, this.count), false);
+    }
+
+    private class RecordSpliterator implements Spliterator<Image> {
+
+        // The records from ... to - 1; splits in halves, so a parallel
+        // stream gets contiguous, equal ranges of the file
+
+        private int from;
+        private final int to;
+
+        RecordSpliterator(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Image> action) {
+            if (this.from >= this.to) return false;
+            action.accept(this.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Image> action) {
+            while (this.from < this.to) {
+                action.accept(this.next());
+            }
+        }
+
+        private Image next() {
+            try {
+                return image(this.from++);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Spliterator<Image> trySplit() {
+            int middle = (this.from + this.to) >>> 1;
+            if (middle <= this.from) return null;
+            RecordSpliterator prefix = new RecordSpliterator(this.from, middle);
+            this.from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.to - this.from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+    // Process-wide instrumentation of the classification stages: a latency
+    // Histogram per stage and counters for the work done in the scans.
+    // A stage is timed with
+    //
+    //    long start = Metrics.start();
+    //    ...
+    //    Metrics.stop(Metrics.SCAN, start);
+    //
+    // which costs two System.nanoTime calls and one histogram update per
+    // stage (per query, not per pixel), so it is on by default.
+    //
+    //    -Dmetrics=off           record nothing
+    //    -Dmetrics.dump=<file>   write the snapshot there on exit ("-" for stdout)
+
+    public static final boolean ENABLED = !System.getProperty("metrics", "on").equals("off");
+
+    public static final Histogram LOAD = new Histogram("load idx");
+    public static final Histogram SNAPSHOT = new Histogram("load snap");
+    public static final Histogram SNAPSHOT_MISS = new Histogram("snap miss"); // looking at a snapshot that was not used
+    public static final Histogram SCALE = new Histogram("scale");
+    public static final Histogram CROP = new Histogram("crop");           // the Pipeline steps (queries only)
+    public static final Histogram RESCALE = new Histogram("rescale");
+    public static final Histogram NORMALIZE = new Histogram("normalize");
+    public static final Histogram CENTER = new Histogram("center");
+    public static final Histogram DESKEW = new Histogram("deskew");
+    public static final Histogram SCAN = new Histogram("scan + top-k");
+    public static final Histogram VOTE = new Histogram("vote");
+
+    public static final LongAdder DISTANCES = new LongAdder(); // distances computed
+    public static final LongAdder INSERTS = new LongAdder();   // top-k updates
+
+    private static final Histogram[] HISTOGRAMS = { LOAD, SNAPSHOT, SNAPSHOT_MISS, SCALE, CROP, RESCALE, NORMALIZE, CENTER,
+            DESKEW, SCAN, VOTE };
+
+    static {
+        String dump = System.getProperty("metrics.dump");
+        if (ENABLED && dump != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(dump)));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Histogram histogram, long start) {
+        if (ENABLED) {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    public static void count(LongAdder counter, long amount) {
+        if (ENABLED) {
+            counter.add(amount);
+        }
+    }
+
+    public static String snapshot() {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%-12s %10s%n", "stage", "count"));
+        for (Histogram histogram : HISTOGRAMS) {
+            result.append(histogram).append(String.format("%n"));
+        }
+        long scans = SCAN.count();
+        result.append(String.format("distances computed %d (%.0f per scan), top-k inserts %d%n",
+                DISTANCES.sum(), scans == 0 ? 0.0 : (double) DISTANCES.sum() / scans, INSERTS.sum()));
+        return result.toString();
+    }
+
+    public static void dump(String fileName) {
+        if (fileName.equals("-")) {
+            System.out.print(snapshot());
+            return;
+        }
+        try (PrintStream output = new PrintStream(new FileOutputStream(fileName))) {
+            output.print(snapshot());
+        } catch (IOException e) {
+            System.out.println("Unable to write metrics to " + fileName + ": " + e);
+        }
+    }
+
+    public static void reset() {
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        DISTANCES.reset();
+        INSERTS.reset();
+    }
+}
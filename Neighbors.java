@@ -0,0 +1,82 @@
+public class Neighbors {
+
+    // The k nearest training samples found so far, closest first.
+    // Samples at the same distance are ordered by index, so the result does
+    // not depend on the order in which samples are offered.  A sequential scan
+    // in index order therefore gives exactly the same neighbors as scanning
+    // shards of the training set separately and merging them.
+
+    private final int[] indexes;
+    private final int[] distances;
+
+    public Neighbors(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size: " + size);
+        }
+        this.indexes = new int[size];
+        this.distances = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            this.indexes[i] = Integer.MAX_VALUE;
+            this.distances[i] = Integer.MAX_VALUE;
+        }
+    }
+
+    public int size() {
+        return this.distances.length;
+    }
+
+    public int index(int slot) {
+        return this.indexes[slot];
+    }
+
+    public int distance(int slot) {
+        return this.distances[slot];
+    }
+
+    public int worst() {
+        // Distance of the k-th neighbor (Integer.MAX_VALUE until k have been seen)
+        return this.distances[this.distances.length - 1];
+    }
+
+    private static boolean closer(int distance, int index, int otherDistance, int otherIndex) {
+        return distance < otherDistance || (distance == otherDistance && index < otherIndex);
+    }
+
+    public boolean insert(int distance, int index) {
+        int last = this.distances.length - 1;
+        if (!closer(distance, index, this.distances[last], this.indexes[last])) {
+            return false;
+        }
+
+        // shift the farther neighbors down and put the new one in its slot
+        int j = last;
+        while (j > 0 && closer(distance, index, this.distances[j - 1], this.indexes[j - 1])) {
+            this.distances[j] = this.distances[j - 1];
+            this.indexes[j] = this.indexes[j - 1];
+            j--;
+        }
+        this.distances[j] = distance;
+        this.indexes[j] = index;
+        return true;
+    }
+
+    public Neighbors merge(Neighbors other) {
+        for (int i = 0; i < other.size() && other.indexes[i] != Integer.MAX_VALUE; i++) {
+            this.insert(other.distances[i], other.indexes[i]);
+        }
+        return this;
+    }
+
+    public int[] distances() {
+        return this.distances.clone();
+    }
+
+    public int[] digits(Dataset dataset) {
+        int[] digits = new int[this.indexes.length];
+        for (int i = 0; i < digits.length; i++) {
+            digits[i] = this.indexes[i] == Integer.MAX_VALUE ? 0 : dataset.digit(this.indexes[i]);
+        }
+        return digits;
+    }
+}
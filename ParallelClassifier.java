@@ -0,0 +1,75 @@
+import java.util.concurrent.CancellationException;
+import java.util.stream.IntStream;
+
+public class ParallelClassifier implements MNIST_GUI.Classifier {
+
+    // Classifies a single image using all cores.  The training set is split
+    // into shards, the k nearest neighbors of each shard are found on the
+    // fork-join pool, and the shard results are merged into the global k
+    // nearest before the usual weighted vote.  Because Neighbors orders ties
+    // by index the result is exactly that of Main.smallest.
+    //
+    // The shards run on pool threads, so they watch the calling thread: if
+    // it is interrupted they stop and nearest throws CancellationException.
+    // With -Ddistance=dot the query is prepared as a SparseQuery once and
+    // shared (it is immutable) rather than once per chunk.
+
+    private static final int CHUNK = 2048; // samples scanned between interrupt checks
+
+    private final Dataset dataset;
+    private final int size;
+    private final int shards;
+
+    public ParallelClassifier(Dataset dataset, int size) {
+        this(dataset, size, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelClassifier(Dataset dataset, int size, int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Shards: " + shards);
+        }
+        this.dataset = dataset;
+        this.size = size;
+        this.shards = shards;
+    }
+
+    public Neighbors nearest(Image image) {
+        byte[] query = image.flatten();
+        SparseQuery sparse = Main.dotProduct ? new SparseQuery(query) : null;
+        int count = this.dataset.count();
+        Thread caller = Thread.currentThread();
+
+        return IntStream.range(0, this.shards).parallel()
+                .mapToObj(shard -> {
+                    Neighbors local = new Neighbors(this.size);
+                    int from = (int) ((long) count * shard / this.shards);
+                    int to = (int) ((long) count * (shard + 1) / this.shards);
+                    for (int start = from; start < to; start += CHUNK) {
+                        if (caller.isInterrupted()) {
+                            throw new CancellationException("Classification interrupted");
+                        }
+                        int end = Math.min(start + CHUNK, to);
+                        if (sparse != null) {
+                            sparse.scan(this.dataset, start, end, local);
+                        } else {
+                            Main.scan(query, this.dataset, start, end, local);
+                        }
+                    }
+                    return local;
+                })
+                .reduce(Neighbors::merge)
+                .get();
+    }
+
+    @Override
+    public int classify(Image image) {
+        long start = Metrics.start();
+        Neighbors neighbors = this.nearest(image);
+        Metrics.stop(Metrics.SCAN, start);
+
+        start = Metrics.start();
+        int digit = Main.vote(neighbors, this.dataset);
+        Metrics.stop(Metrics.VOTE, start);
+        return digit;
+    }
+}
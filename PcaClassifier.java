@@ -0,0 +1,272 @@
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public class PcaClassifier implements MNIST_GUI.Classifier {
+
+    // KNN with a cheap first pass in a low dimensional space.
+    //
+    // At construction the top principal components of the training set are
+    // computed (covariance matrix plus subspace iteration, in plain Java) and
+    // every training image is projected onto them.  A query is projected the
+    // same way, the closest training images in that space form a shortlist,
+    // and only the shortlist is ranked with the exact pixel distance before
+    // the usual weighted vote.  Fewer components or a shorter shortlist is
+    // faster but may miss some of the true nearest neighbors.
+
+    private static final int ITERATIONS = 100;
+
+    private final Dataset dataset;
+    private final int components;
+    private final int shortlist;
+    private final int size;
+
+    private final double[] mean;       // [pixel]
+    private final float[] basis;       // [component * pixels + pixel]
+    private final float[] offsets;     // [component] mean projected onto each component
+    private final float[] projections; // [image * components + component]
+
+    public PcaClassifier(Dataset dataset, int components, int shortlist, int size) {
+        int pixels = dataset.size();
+        if (components <= 0 || components > pixels) {
+            throw new IllegalArgumentException("Components: " + components);
+        }
+        if (shortlist < size) {
+            throw new IllegalArgumentException("Shortlist: " + shortlist);
+        }
+
+        this.dataset = dataset;
+        this.components = components;
+        this.shortlist = shortlist;
+        this.size = size;
+
+        this.mean = mean(dataset);
+        this.basis = principalComponents(covariance(dataset, this.mean), pixels, components);
+
+        this.offsets = new float[components];
+        for (int c = 0; c < components; c++) {
+            double sum = 0;
+            for (int p = 0; p < pixels; p++) {
+                sum += this.mean[p] * this.basis[c * pixels + p];
+            }
+            this.offsets[c] = (float) sum;
+        }
+
+        this.projections = new float[dataset.count() * components];
+        IntStream.range(0, dataset.count()).parallel().forEach(i ->
+                this.project(dataset.pixels(), dataset.offset(i), this.projections, i * components));
+    }
+
+
+    private PcaClassifier(PcaClassifier other, int shortlist) {
+        this.dataset = other.dataset;
+        this.components = other.components;
+        this.shortlist = shortlist;
+        this.size = other.size;
+        this.mean = other.mean;
+        this.basis = other.basis;
+        this.offsets = other.offsets;
+        this.projections = other.projections;
+    }
+
+    public PcaClassifier withShortlist(int shortlist) {
+        // Same components and projections, different shortlist size
+        if (shortlist < this.size) {
+            throw new IllegalArgumentException("Shortlist: " + shortlist);
+        }
+        return new PcaClassifier(this, shortlist);
+    }
+
+
+    private static double[] mean(Dataset dataset) {
+        int pixels = dataset.size();
+        long[] sums = new long[pixels];
+        byte[] data = dataset.pixels();
+
+        for (int offset = 0; offset < data.length; offset += pixels) {
+            for (int p = 0; p < pixels; p++) {
+                sums[p] += data[offset + p] & 0xFF;
+            }
+        }
+
+        double[] mean = new double[pixels];
+        for (int p = 0; p < pixels; p++) {
+            mean[p] = (double) sums[p] / dataset.count();
+        }
+        return mean;
+    }
+
+
+    private static double[] covariance(Dataset dataset, double[] mean) {
+        // Sum of the outer products x * x^T over all images, accumulated in
+        // parallel chunks.  Most MNIST pixels are 0, so only the pairs of
+        // non-zero pixels of each image are visited.
+        int pixels = dataset.size();
+        int count = dataset.count();
+        byte[] data = dataset.pixels();
+        int chunks = Math.min(count, Runtime.getRuntime().availableProcessors());
+
+        long[] products = IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+            long[] sums = new long[pixels * pixels];
+            int[] indexes = new int[pixels];
+            int[] values = new int[pixels];
+
+            for (int i = count * chunk / chunks; i < count * (chunk + 1) / chunks; i++) {
+                int offset = dataset.offset(i);
+                int nonzero = 0;
+                for (int p = 0; p < pixels; p++) {
+                    int value = data[offset + p] & 0xFF;
+                    if (value != 0) {
+                        indexes[nonzero] = p;
+                        values[nonzero] = value;
+                        nonzero++;
+                    }
+                }
+                // upper triangle only
+                for (int a = 0; a < nonzero; a++) {
+                    int row = indexes[a] * pixels;
+                    for (int b = a; b < nonzero; b++) {
+                        sums[row + indexes[b]] += values[a] * values[b];
+                    }
+                }
+            }
+            return sums;
+        }).reduce((a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                a[i] += b[i];
+            }
+            return a;
+        }).get();
+
+        // cov(i, j) = E[x_i x_j] - mean_i mean_j
+        double[] covariance = new double[pixels * pixels];
+        for (int i = 0; i < pixels; i++) {
+            for (int j = i; j < pixels; j++) {
+                double value = (double) products[i * pixels + j] / count - mean[i] * mean[j];
+                covariance[i * pixels + j] = value;
+                covariance[j * pixels + i] = value;
+            }
+        }
+        return covariance;
+    }
+
+
+    private static float[] principalComponents(double[] covariance, int pixels, int components) {
+        // Subspace (orthogonal) iteration: repeatedly multiply a block of
+        // vectors by the covariance matrix and re-orthonormalize it.  The block
+        // converges to the eigenvectors with the largest eigenvalues.
+        double[][] vectors = new double[components][pixels];
+        Random random = new Random(1);
+        for (double[] vector : vectors) {
+            for (int p = 0; p < pixels; p++) {
+                vector[p] = random.nextGaussian();
+            }
+        }
+        orthonormalize(vectors);
+
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            double[][] current = vectors;
+            double[][] next = new double[components][pixels];
+            IntStream.range(0, pixels).parallel().forEach(row -> {
+                int base = row * pixels;
+                for (int c = 0; c < components; c++) {
+                    double[] vector = current[c];
+                    double sum = 0;
+                    for (int p = 0; p < pixels; p++) {
+                        sum += covariance[base + p] * vector[p];
+                    }
+                    next[c][row] = sum;
+                }
+            });
+            orthonormalize(next);
+            vectors = next;
+        }
+
+        float[] basis = new float[components * pixels];
+        for (int c = 0; c < components; c++) {
+            for (int p = 0; p < pixels; p++) {
+                basis[c * pixels + p] = (float) vectors[c][p];
+            }
+        }
+        return basis;
+    }
+
+    private static void orthonormalize(double[][] vectors) {
+        // Modified Gram-Schmidt
+        for (int i = 0; i < vectors.length; i++) {
+            double[] vector = vectors[i];
+            for (int j = 0; j < i; j++) {
+                double dot = 0;
+                for (int p = 0; p < vector.length; p++) {
+                    dot += vector[p] * vectors[j][p];
+                }
+                for (int p = 0; p < vector.length; p++) {
+                    vector[p] -= dot * vectors[j][p];
+                }
+            }
+            double norm = 0;
+            for (double value : vector) {
+                norm += value * value;
+            }
+            norm = Math.sqrt(norm);
+            for (int p = 0; p < vector.length; p++) {
+                vector[p] /= norm;
+            }
+        }
+    }
+
+
+    private void project(byte[] pixels, int offset, float[] result, int start) {
+        // Coordinates of (image - mean) along each component, skipping zero pixels
+        int length = this.dataset.size();
+        for (int c = 0; c < this.components; c++) {
+            int base = c * length;
+            float sum = 0;
+            for (int p = 0; p < length; p++) {
+                int value = pixels[offset + p] & 0xFF;
+                if (value != 0) {
+                    sum += value * this.basis[base + p];
+                }
+            }
+            result[start + c] = sum - this.offsets[c];
+        }
+    }
+
+
+    public int[] candidates(byte[] query) {
+        // The shortlist: indexes of the training images closest to the query
+        // in the projected space, in increasing index order
+        float[] projected = new float[this.components];
+        this.project(query, 0, projected, 0);
+
+        Shortlist shortlist = new Shortlist(Math.min(this.shortlist, this.dataset.count()));
+
+        for (int i = 0, offset = 0; i < this.dataset.count(); i++, offset += this.components) {
+            float distance = 0;
+            for (int c = 0; c < this.components; c++) {
+                float difference = projected[c] - this.projections[offset + c];
+                distance += difference * difference;
+            }
+            shortlist.offer(distance, i);
+        }
+
+        return shortlist.indexes();
+    }
+
+
+    public Neighbors nearest(Image image) {
+        // Exact re-ranking of the shortlist
+        byte[] query = image.flatten();
+        byte[] pixels = this.dataset.pixels();
+        Neighbors neighbors = new Neighbors(this.size);
+
+        for (int i : this.candidates(query)) {
+            neighbors.insert(Main.kernel.distance(query, pixels, this.dataset.offset(i)), i);
+        }
+        return neighbors;
+    }
+
+    @Override
+    public int classify(Image image) {
+        return Main.vote(this.nearest(image), this.dataset);
+    }
+}
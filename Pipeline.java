@@ -0,0 +1,422 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class Pipeline {
+
+    // A sequence of preprocessing steps applied to an image before it is
+    // classified.  The same pipeline has to be applied to the training set
+    // and to every query, so Main applies it once to the whole training set
+    // (in parallel, persisted as its own snapshot) and hands the same object
+    // to MNIST_GUI and the evaluation for the queries.
+    //
+    // A pipeline is immutable; each method returns a longer pipeline:
+    //
+    //    Pipeline.none().crop().rescale(20).normalize().center().deskew()
+    //
+    // The steps work in place on a row-major pixel array (as in Dataset):
+    //
+    //    crop        restrict the following rescale to the bounding box of the ink
+    //    rescale(n)  resample (bilinear) so the longer side is n pixels, in the middle of the frame
+    //    normalize   stretch the contrast to the full 0 ... 255 range
+    //    center      shift the center of mass to the center of the frame (the shift the GUI always used)
+    //    deskew      shear rows so the main axis of the ink is vertical
+    //
+    // toString() gives the steps as text ("crop,rescale(20),normalize,center")
+    // and parse() reads them back, so a pipeline can be chosen on the command
+    // line and used to name its snapshot.  Each step is timed (Metrics) when
+    // it runs on a query; the bulk apply(Dataset) is not.
+
+    public static final int VERSION = 1; // increment when a step changes its output (see Snapshot)
+
+    private static final double EPSILON = 1e-9;
+
+    private enum Kind {
+        CROP(Metrics.CROP),
+        RESCALE(Metrics.RESCALE),
+        NORMALIZE(Metrics.NORMALIZE),
+        CENTER(Metrics.CENTER),
+        DESKEW(Metrics.DESKEW);
+
+        final Histogram histogram;
+
+        Kind(Histogram histogram) {
+            this.histogram = histogram;
+        }
+    }
+
+    private static class Step {
+
+        // One step, parsed once: its kind plus the size for rescale
+
+        final Kind kind;
+        final int size;
+
+        Step(Kind kind, int size) {
+            this.kind = kind;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return this.kind == Kind.RESCALE ? "rescale(" + this.size + ")" : this.kind.name().toLowerCase();
+        }
+    }
+
+    private final List<Step> steps;
+
+    private static class Frame {
+
+        // The image being processed plus the region of interest set by crop
+
+        final int rows;
+        final int columns;
+        byte[] pixels;
+        byte[] scratch;
+        int top;
+        int left;
+        int bottom; // exclusive
+        int right;  // exclusive
+
+        Frame(byte[] pixels, byte[] scratch, int rows, int columns) {
+            this.rows = rows;
+            this.columns = columns;
+            this.pixels = pixels;
+            this.scratch = scratch;
+            this.bottom = rows;
+            this.right = columns;
+        }
+
+        int get(int row, int col) {
+            return this.pixels[row * this.columns + col] & 0xFF;
+        }
+
+        void swap() {
+            // The scratch array becomes the image
+            byte[] pixels = this.pixels;
+            this.pixels = this.scratch;
+            this.scratch = pixels;
+        }
+    }
+
+    private Pipeline(List<Step> steps) {
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    public static Pipeline none() {
+        return new Pipeline(new ArrayList<>());
+    }
+
+    public static Pipeline parse(String text) {
+        // The inverse of toString ("none" or "" is the empty pipeline)
+        Pipeline pipeline = none();
+        if (text.isBlank() || text.equals("none")) return pipeline;
+
+        for (String step : text.split(",")) {
+            step = step.trim();
+            if (step.equals("crop")) {
+                pipeline = pipeline.crop();
+            } else if (step.equals("normalize")) {
+                pipeline = pipeline.normalize();
+            } else if (step.equals("center")) {
+                pipeline = pipeline.center();
+            } else if (step.equals("deskew")) {
+                pipeline = pipeline.deskew();
+            } else if (step.startsWith("rescale(") && step.endsWith(")")) {
+                pipeline = pipeline.rescale(Integer.parseInt(step.substring(8, step.length() - 1)));
+            } else {
+                throw new IllegalArgumentException("Step: " + step);
+            }
+        }
+        return pipeline;
+    }
+
+    private Pipeline then(Kind kind, int size) {
+        List<Step> steps = new ArrayList<>(this.steps);
+        steps.add(new Step(kind, size));
+        return new Pipeline(steps);
+    }
+
+    public Pipeline crop() {
+        return this.then(Kind.CROP, 0);
+    }
+
+    public Pipeline rescale(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size: " + size);
+        }
+        return this.then(Kind.RESCALE, size);
+    }
+
+    public Pipeline normalize() {
+        return this.then(Kind.NORMALIZE, 0);
+    }
+
+    public Pipeline center() {
+        return this.then(Kind.CENTER, 0);
+    }
+
+    public Pipeline deskew() {
+        return this.then(Kind.DESKEW, 0);
+    }
+
+    public boolean isEmpty() {
+        return this.steps.isEmpty();
+    }
+
+
+    public void apply(byte[] pixels, int rows, int columns) {
+        // Run the steps on one row-major image, in place
+        this.apply(pixels, rows, columns, new byte[pixels.length]);
+    }
+
+    public void apply(byte[] pixels, int rows, int columns, byte[] scratch) {
+        // Same, with a work array of the same length as pixels that the
+        // caller can reuse, so that nothing is allocated
+        if (pixels.length != rows * columns) {
+            throw new IllegalArgumentException("Pixels: " + pixels.length + " for " + rows + " x " + columns);
+        }
+        if (scratch.length != pixels.length) {
+            throw new IllegalArgumentException("Scratch: " + scratch.length);
+        }
+        this.run(pixels, scratch, rows, columns, true);
+    }
+
+    private void run(byte[] pixels, byte[] scratch, int rows, int columns, boolean timed) {
+        if (this.steps.isEmpty()) return;
+
+        Frame frame = new Frame(pixels, scratch, rows, columns);
+        for (Step step : this.steps) {
+            long start = timed ? Metrics.start() : 0;
+            switch (step.kind) {
+                case CROP:
+                    crop(frame);
+                    break;
+                case RESCALE:
+                    rescale(frame, step.size);
+                    break;
+                case NORMALIZE:
+                    normalize(frame);
+                    break;
+                case CENTER:
+                    center(frame);
+                    break;
+                default:
+                    deskew(frame);
+            }
+            if (timed) Metrics.stop(step.kind.histogram, start);
+        }
+        if (frame.pixels != pixels) {
+            System.arraycopy(frame.pixels, 0, pixels, 0, pixels.length);
+        }
+    }
+
+    public Image apply(Image image) {
+        // A processed copy with the same digit and id (the image itself if
+        // there are no steps)
+        if (this.steps.isEmpty()) return image;
+        byte[] pixels = image.flatten();
+        this.apply(pixels, image.rows(), image.columns());
+
+        byte[][] result = new byte[image.rows()][];
+        for (int row = 0; row < result.length; row++) {
+            result[row] = Arrays.copyOfRange(pixels, row * image.columns(), (row + 1) * image.columns());
+        }
+        return new Image(result, image.digit(), image.id());
+    }
+
+    public Dataset apply(Dataset dataset) {
+        // A processed copy of every sample, in parallel (the dataset itself
+        // if there are no steps)
+        if (this.steps.isEmpty()) return dataset;
+
+        int size = dataset.size();
+        byte[] pixels = dataset.pixels().clone();
+        IntStream.range(0, dataset.count()).parallel().forEach(i -> {
+            byte[] image = Arrays.copyOfRange(pixels, i * size, (i + 1) * size);
+            this.run(image, new byte[size], dataset.rows(), dataset.columns(), false);
+            System.arraycopy(image, 0, pixels, i * size, size);
+        });
+        return new Dataset(dataset.rows(), dataset.columns(), pixels, dataset.labels().clone());
+    }
+
+
+    private static void crop(Frame frame) {
+        // Bounding box of the non-white pixels (the whole frame if there are none)
+        int top = frame.rows;
+        int left = frame.columns;
+        int bottom = -1;
+        int right = -1;
+
+        for (int row = 0; row < frame.rows; row++) {
+            for (int col = 0; col < frame.columns; col++) {
+                if (frame.get(row, col) != 0) {
+                    top = Math.min(top, row);
+                    bottom = Math.max(bottom, row);
+                    left = Math.min(left, col);
+                    right = Math.max(right, col);
+                }
+            }
+        }
+
+        if (bottom >= 0) {
+            frame.top = top;
+            frame.left = left;
+            frame.bottom = bottom + 1;
+            frame.right = right + 1;
+        }
+    }
+
+    private static void rescale(Frame frame, int size) {
+        // Bilinear resampling of the region of interest so that its longer
+        // side becomes size pixels, placed in the middle of the frame
+        int height = frame.bottom - frame.top;
+        int width = frame.right - frame.left;
+        double scale = (double) size / Math.max(height, width);
+        int newHeight = Math.max(1, Math.min(frame.rows, (int) Math.round(height * scale)));
+        int newWidth = Math.max(1, Math.min(frame.columns, (int) Math.round(width * scale)));
+        int top = (frame.rows - newHeight) / 2;
+        int left = (frame.columns - newWidth) / 2;
+
+        Arrays.fill(frame.scratch, (byte) 0);
+        for (int row = 0; row < newHeight; row++) {
+            double y = frame.top + (row + 0.5) / scale - 0.5;
+            for (int col = 0; col < newWidth; col++) {
+                double x = frame.left + (col + 0.5) / scale - 0.5;
+                int value = (int) Math.round(sample(frame, y, x));
+                frame.scratch[(top + row) * frame.columns + left + col] = (byte) value;
+            }
+        }
+        frame.swap();
+
+        frame.top = 0;
+        frame.left = 0;
+        frame.bottom = frame.rows;
+        frame.right = frame.columns;
+    }
+
+    private static double sample(Frame frame, double y, double x) {
+        // Bilinear interpolation, white outside the image
+        int y0 = (int) Math.floor(y);
+        int x0 = (int) Math.floor(x);
+        double dy = y - y0;
+        double dx = x - x0;
+        return (1 - dy) * ((1 - dx) * pixel(frame, y0, x0) + dx * pixel(frame, y0, x0 + 1))
+                + dy * ((1 - dx) * pixel(frame, y0 + 1, x0) + dx * pixel(frame, y0 + 1, x0 + 1));
+    }
+
+    private static int pixel(Frame frame, int row, int col) {
+        if (row < 0 || row >= frame.rows || col < 0 || col >= frame.columns) return 0;
+        return frame.get(row, col);
+    }
+
+    private static void normalize(Frame frame) {
+        // Stretch min ... max to 0 ... 255.  (The GUI's old brighten computed
+        // min + 255 * (pixel - min) / (max - min), the same whenever min is
+        // 0, as it is for a drawing on a white background, but above 255 for
+        // the darkest pixel otherwise.)
+        int max = 0;
+        int min = 255;
+        for (byte pixel : frame.pixels) {
+            max = Math.max(max, pixel & 0xFF);
+            min = Math.min(min, pixel & 0xFF);
+        }
+        if (max == min) return;
+
+        for (int p = 0; p < frame.pixels.length; p++) {
+            frame.pixels[p] = (byte) (255 * ((frame.pixels[p] & 0xFF) - min) / (max - min));
+        }
+    }
+
+    private static void center(Frame frame) {
+        // The shift of the GUI's original center: by the integer difference
+        // between the middle and the center of mass
+        long sum = 0;
+        long rowSum = 0;
+        long colSum = 0;
+        for (int row = 0; row < frame.rows; row++) {
+            for (int col = 0; col < frame.columns; col++) {
+                int pixel = frame.get(row, col);
+                rowSum += row * pixel;
+                colSum += col * pixel;
+                sum += pixel;
+            }
+        }
+        if (sum == 0) return;
+
+        int rowShift = (int) (frame.rows / 2 - rowSum / sum);
+        int colShift = (int) (frame.columns / 2 - colSum / sum);
+        if (rowShift == 0 && colShift == 0) return;
+
+        for (int row = 0; row < frame.rows; row++) {
+            for (int col = 0; col < frame.columns; col++) {
+                frame.scratch[row * frame.columns + col] = (byte) pixel(frame, row - rowShift, col - colShift);
+            }
+        }
+        frame.swap();
+    }
+
+    private static void deskew(Frame frame) {
+        // Shear each row horizontally by skew * (row - center row), where
+        // skew = mu11 / mu02 from the second order moments of the ink
+        double sum = 0;
+        double rowSum = 0;
+        double colSum = 0;
+        for (int row = 0; row < frame.rows; row++) {
+            for (int col = 0; col < frame.columns; col++) {
+                int pixel = frame.get(row, col);
+                sum += pixel;
+                rowSum += row * pixel;
+                colSum += col * pixel;
+            }
+        }
+        if (sum == 0) return;
+
+        double centerRow = rowSum / sum;
+        double centerCol = colSum / sum;
+        double mu11 = 0;
+        double mu02 = 0;
+        for (int row = 0; row < frame.rows; row++) {
+            for (int col = 0; col < frame.columns; col++) {
+                int pixel = frame.get(row, col);
+                mu11 += (row - centerRow) * (col - centerCol) * pixel;
+                mu02 += (row - centerRow) * (row - centerRow) * pixel;
+            }
+        }
+        if (mu02 < EPSILON) return;
+
+        double skew = mu11 / mu02;
+        for (int row = 0; row < frame.rows; row++) {
+            double shift = skew * (row - centerRow);
+            for (int col = 0; col < frame.columns; col++) {
+                double value = sample(frame, row, col + shift);
+                frame.scratch[row * frame.columns + col] = (byte) Math.round(value);
+            }
+        }
+        frame.swap();
+    }
+
+
+    @Override
+    public String toString() {
+        if (this.steps.isEmpty()) return "none";
+        StringBuilder result = new StringBuilder();
+        for (Step step : this.steps) {
+            if (result.length() > 0) result.append(',');
+            result.append(step);
+        }
+        return result.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Pipeline && this.toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return this.toString().hashCode();
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+public class ProductQuantizer implements MNIST_GUI.Classifier {
+
+    // KNN over a product-quantized copy of the training set.
+    //
+    // The pixels of an image are split into equal sub-vectors (e.g. 28
+    // sub-vectors of one row each) and k-means learns 256 centroids for each
+    // sub-vector position.  Every training image is then stored as one byte
+    // per sub-vector: the number of its closest centroid.  For a query, a
+    // table of the squared distances from each query sub-vector to every
+    // centroid is computed once, after which the (asymmetric) distance to a
+    // training image is just one table lookup per sub-vector.  Optionally the
+    // best candidates are ranked again with the exact pixel distance.
+    //
+    // Without reranking only the codes and labels are kept, not the training
+    // set, so the pixels can be freed; reranking needs the Dataset as well.
+
+    private static final int CENTROIDS = 256; // so a code fits in a byte
+    private static final long SEED = 42;
+
+    private final Dataset dataset;  // only for reranking (null otherwise)
+    private final byte[] labels;
+    private final int count;
+    private final int size;
+    private final int subspaces;
+    private final int length;       // pixels per sub-vector
+    private final int rerank;       // candidates ranked exactly (0: none)
+
+    private final float[][] codebooks; // [subspace][centroid * length + pixel]
+    private final byte[] codes;        // [image * subspaces + subspace]
+
+    public ProductQuantizer(Dataset dataset, int size, int subspaces, int iterations, int samples, int rerank) {
+        if (subspaces <= 0 || dataset.size() % subspaces != 0) {
+            throw new IllegalArgumentException("Subspaces: " + subspaces);
+        }
+        if (rerank != 0 && rerank < size) {
+            throw new IllegalArgumentException("Rerank: " + rerank);
+        }
+
+        this.dataset = (rerank == 0) ? null : dataset;
+        this.labels = dataset.labels();
+        this.count = dataset.count();
+        this.size = size;
+        this.subspaces = subspaces;
+        this.length = dataset.size() / subspaces;
+        this.rerank = rerank;
+
+        // Train on a random sample of the training set
+        SplittableRandom random = new SplittableRandom(SEED);
+        int[] sample = random.ints(Math.min(samples, dataset.count()), 0, dataset.count()).toArray();
+
+        this.codebooks = new float[subspaces][];
+        IntStream.range(0, subspaces).parallel().forEach(s ->
+                this.codebooks[s] = this.train(dataset, s, sample, iterations, new SplittableRandom(SEED + s)));
+
+        this.codes = new byte[dataset.count() * subspaces];
+        IntStream.range(0, dataset.count()).parallel().forEach(i -> {
+            for (int s = 0; s < subspaces; s++) {
+                this.codes[i * subspaces + s] = (byte) this.closest(dataset, s, dataset.offset(i) + s * this.length);
+            }
+        });
+    }
+
+
+    private ProductQuantizer(ProductQuantizer other, Dataset dataset, int rerank) {
+        this.dataset = (rerank == 0) ? null : dataset;
+        this.labels = other.labels;
+        this.count = other.count;
+        this.size = other.size;
+        this.subspaces = other.subspaces;
+        this.length = other.length;
+        this.rerank = rerank;
+        this.codebooks = other.codebooks;
+        this.codes = other.codes;
+    }
+
+    public ProductQuantizer withRerank(Dataset dataset, int rerank) {
+        // Same codebooks and codes, different number of candidates ranked
+        // exactly.  dataset: the training set the codes were built from
+        // (only kept, and only needed, if rerank is not 0).
+        if (rerank != 0 && rerank < this.size) {
+            throw new IllegalArgumentException("Rerank: " + rerank);
+        }
+        if (rerank != 0 && (dataset == null || dataset.count() != this.count)) {
+            throw new IllegalArgumentException("Dataset: " + (dataset == null ? null : dataset.count() + " images"));
+        }
+        return new ProductQuantizer(this, dataset, rerank);
+    }
+
+
+    private float[] train(Dataset dataset, int subspace, int[] sample, int iterations, SplittableRandom random) {
+        // Lloyd's k-means on one sub-vector position, seeded with random samples
+        float[] centroids = new float[CENTROIDS * this.length];
+        byte[] pixels = dataset.pixels();
+        int start = subspace * this.length;
+
+        for (int c = 0; c < CENTROIDS; c++) {
+            int offset = dataset.offset(sample[random.nextInt(sample.length)]) + start;
+            for (int p = 0; p < this.length; p++) {
+                centroids[c * this.length + p] = pixels[offset + p] & 0xFF;
+            }
+        }
+        this.codebooks[subspace] = centroids;
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            double[] sums = new double[CENTROIDS * this.length];
+            int[] counts = new int[CENTROIDS];
+
+            for (int i : sample) {
+                int offset = dataset.offset(i) + start;
+                int c = this.closest(dataset, subspace, offset);
+                counts[c]++;
+                for (int p = 0; p < this.length; p++) {
+                    sums[c * this.length + p] += pixels[offset + p] & 0xFF;
+                }
+            }
+
+            for (int c = 0; c < CENTROIDS; c++) {
+                if (counts[c] == 0) continue; // keep an empty centroid where it is
+                for (int p = 0; p < this.length; p++) {
+                    centroids[c * this.length + p] = (float) (sums[c * this.length + p] / counts[c]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private int closest(Dataset dataset, int subspace, int offset) {
+        // Centroid nearest to the sub-vector of the training pixels at offset
+        float[] centroids = this.codebooks[subspace];
+        byte[] pixels = dataset.pixels();
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+
+        for (int c = 0; c < CENTROIDS; c++) {
+            float distance = 0;
+            for (int p = 0; p < this.length; p++) {
+                float difference = (pixels[offset + p] & 0xFF) - centroids[c * this.length + p];
+                distance += difference * difference;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+
+    private float[] table(byte[] query) {
+        // Squared distance from each query sub-vector to each centroid
+        float[] table = new float[this.subspaces * CENTROIDS];
+        for (int s = 0; s < this.subspaces; s++) {
+            float[] centroids = this.codebooks[s];
+            for (int c = 0; c < CENTROIDS; c++) {
+                float distance = 0;
+                for (int p = 0; p < this.length; p++) {
+                    float difference = (query[s * this.length + p] & 0xFF) - centroids[c * this.length + p];
+                    distance += difference * difference;
+                }
+                table[s * CENTROIDS + c] = distance;
+            }
+        }
+        return table;
+    }
+
+    public Neighbors nearest(Image image) {
+        byte[] query = image.flatten();
+        float[] table = this.table(query);
+        int count = this.count;
+
+        if (this.rerank == 0) {
+            // Vote on the approximate distances
+            Neighbors neighbors = new Neighbors(this.size);
+            for (int i = 0, offset = 0; i < count; i++, offset += this.subspaces) {
+                neighbors.insert(Math.round(this.approximate(table, offset)), i);
+            }
+            return neighbors;
+        }
+
+        Shortlist shortlist = new Shortlist(Math.min(this.rerank, count));
+        for (int i = 0, offset = 0; i < count; i++, offset += this.subspaces) {
+            shortlist.offer(this.approximate(table, offset), i);
+        }
+
+        Neighbors neighbors = new Neighbors(this.size);
+        for (int i : shortlist.indexes()) {
+            neighbors.insert(Main.kernel.distance(query, this.dataset.pixels(), this.dataset.offset(i)), i);
+        }
+        return neighbors;
+    }
+
+    private float approximate(float[] table, int offset) {
+        float distance = 0;
+        for (int s = 0, base = 0; s < this.subspaces; s++, base += CENTROIDS) {
+            distance += table[base + (this.codes[offset + s] & 0xFF)];
+        }
+        return distance;
+    }
+
+    @Override
+    public int classify(Image image) {
+        Neighbors neighbors = this.nearest(image);
+        int[] digits = new int[neighbors.size()];
+        for (int k = 0; k < digits.length; k++) {
+            digits[k] = this.labels[neighbors.index(k)];
+        }
+        return Main.vote(digits, neighbors.distances());
+    }
+
+    public int bytesPerImage() {
+        // Codes plus the label (the codebooks are shared by all images)
+        return this.subspaces + 1;
+    }
+}
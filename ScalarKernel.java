@@ -0,0 +1,14 @@
+public class ScalarKernel implements DistanceKernel {
+
+    // One pixel at a time; works on every JVM.
+
+    @Override
+    public int distance(byte[] query, byte[] pixels, int offset) {
+        return Main.distance(query, pixels, offset);
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
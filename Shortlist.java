@@ -0,0 +1,65 @@
+import java.util.Arrays;
+
+public class Shortlist {
+
+    // The n training images with the smallest approximate distance to a
+    // query (a bounded max-heap: the farthest kept image is on top).  Used by
+    // the classifiers that find candidates cheaply and then rank only the
+    // candidates with the exact distance.
+
+    private final float[] heap;
+    private final int[] indexes;
+    private int used;
+
+    public Shortlist(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity: " + capacity);
+        }
+        this.heap = new float[capacity];
+        this.indexes = new int[capacity];
+    }
+
+    public void offer(float distance, int index) {
+        if (this.used < this.heap.length) {
+            int slot = this.used++;
+            while (slot > 0) {
+                int parent = (slot - 1) / 2;
+                if (this.heap[parent] >= distance) break;
+                this.heap[slot] = this.heap[parent];
+                this.indexes[slot] = this.indexes[parent];
+                slot = parent;
+            }
+            this.heap[slot] = distance;
+            this.indexes[slot] = index;
+        } else if (distance < this.heap[0]) {
+            int slot = 0;
+            while (true) {
+                int largest = slot;
+                float largestDistance = distance;
+                int left = 2 * slot + 1;
+                int right = left + 1;
+                if (left < this.used && this.heap[left] > largestDistance) {
+                    largest = left;
+                    largestDistance = this.heap[left];
+                }
+                if (right < this.used && this.heap[right] > largestDistance) {
+                    largest = right;
+                }
+                if (largest == slot) break;
+                this.heap[slot] = this.heap[largest];
+                this.indexes[slot] = this.indexes[largest];
+                slot = largest;
+            }
+            this.heap[slot] = distance;
+            this.indexes[slot] = index;
+        }
+    }
+
+    public int[] indexes() {
+        // The kept images in increasing index order, so that exact ranking
+        // breaks ties the same way a linear scan does
+        int[] result = Arrays.copyOf(this.indexes, this.used);
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class Snapshot {
+
+    // A binary image of a decoded Dataset (plus the data derived from it at
+    // load time) that can be memory-mapped and used without any parsing.
+    //
+    //    int     magic ("KNNS")
+    //    int     format version
+    //    long    length and last modification time of the IDX image file
+    //    long    length and last modification time of the IDX label file
+    //    int     rows, columns, count
+    //    int     Pipeline.VERSION of the preprocessing
+    //    int     length of the pipeline text
+    //    byte[]  the pipeline (Pipeline.toString(), UTF-8)
+    //    long    CRC32 of everything that follows
+    //    byte[]  pixels (count * rows * columns, as in Dataset)
+    //    byte[]  labels (count)
+    //    int[]   pixel order by decreasing variance (rows * columns)
+    //    int[]   norm of every image (count)
+    //
+    // A snapshot is only used if its version is current, it was built from
+    // IDX files of the same length and modification time with the same
+    // pipeline (and pipeline version), and its checksum matches.  Otherwise
+    // the IDX files are read again and the snapshot rebuilt.
+    //
+    // The derived data (order and norms) is computed once when the snapshot
+    // is written, so a warm start does not compute it again.  The sections
+    // are copied from the mapping into heap arrays: every scan kernel works
+    // on byte[] and int[], and the copy is a sequential read of the page
+    // cache that costs far less than parsing the IDX files.
+
+    public static final int MAGIC = 0x4B4E4E53;
+    public static final int VERSION = 4;
+
+    private static final int HEADER = 4 + 4 + 4 * 8 + 5 * 4 + 8; // without the pipeline text
+
+
+    public static Dataset open(String snapshotFileName, String imageFileName, String labelFileName) throws IOException {
+        return open(snapshotFileName, imageFileName, labelFileName, Pipeline.none());
+    }
+
+    public static Dataset open(String snapshotFileName, String imageFileName, String labelFileName, Pipeline pipeline)
+            throws IOException {
+        // The training set after the given preprocessing.  A snapshot holds
+        // one pipeline, so pipelines used side by side need their own files.
+        // A missing, stale or corrupt snapshot is timed separately so that
+        // "load snap" only holds loads that were used
+        long start = Metrics.start();
+        Dataset dataset = load(snapshotFileName, imageFileName, labelFileName, pipeline);
+        Metrics.stop(dataset != null ? Metrics.SNAPSHOT : Metrics.SNAPSHOT_MISS, start);
+        if (dataset == null) {
+            dataset = pipeline.apply(new MappedReader(imageFileName, labelFileName).read());
+            try {
+                save(dataset, snapshotFileName, imageFileName, labelFileName, pipeline);
+            } catch (IOException e) {
+                // Not fatal: we just pay for the IDX files again next time
+                System.out.println("Unable to write snapshot " + snapshotFileName + ": " + e);
+            }
+        }
+        return dataset;
+    }
+
+
+    public static Dataset load(String snapshotFileName, String imageFileName, String labelFileName) throws IOException {
+        return load(snapshotFileName, imageFileName, labelFileName, Pipeline.none());
+    }
+
+    public static Dataset load(String snapshotFileName, String imageFileName, String labelFileName, Pipeline pipeline)
+            throws IOException {
+        // Returns null if there is no usable snapshot
+        if (!new File(snapshotFileName).isFile()) return null;
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Path.of(snapshotFileName))) {
+            if (channel.size() < HEADER) return null;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+
+        File images = new File(imageFileName);
+        File labels = new File(labelFileName);
+        if (buffer.getLong() != images.length() || buffer.getLong() != images.lastModified()
+                || buffer.getLong() != labels.length() || buffer.getLong() != labels.lastModified()) {
+            return null;
+        }
+
+        int rows = buffer.getInt();
+        int columns = buffer.getInt();
+        int count = buffer.getInt();
+        if (buffer.getInt() != Pipeline.VERSION) return null;
+        byte[] steps = pipeline.toString().getBytes(StandardCharsets.UTF_8);
+        if (buffer.getInt() != steps.length || buffer.remaining() < steps.length + 8) return null;
+        byte[] stored = new byte[steps.length];
+        buffer.get(stored);
+        if (!Arrays.equals(stored, steps)) return null;
+        long checksum = buffer.getLong();
+
+        long size = (long) rows * columns;
+        if (rows <= 0 || columns <= 0 || count <= 0
+                || buffer.remaining() != count * size + count + 4L * size + 4L * count) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if (crc.getValue() != checksum) return null;
+
+        byte[] pixels = new byte[(int) (count * size)];
+        byte[] digits = new byte[count];
+        int[] order = new int[(int) size];
+        int[] norms = new int[count];
+        buffer.get(pixels);
+        buffer.get(digits);
+        buffer.asIntBuffer().get(order).get(norms);
+
+        return new Dataset(rows, columns, pixels, digits, order, norms);
+    }
+
+
+    public static void save(Dataset dataset, String snapshotFileName, String imageFileName, String labelFileName)
+            throws IOException {
+        save(dataset, snapshotFileName, imageFileName, labelFileName, Pipeline.none());
+    }
+
+    public static void save(Dataset dataset, String snapshotFileName, String imageFileName, String labelFileName,
+            Pipeline pipeline) throws IOException {
+        // dataset: the IDX files after the pipeline
+        File images = new File(imageFileName);
+        File labels = new File(labelFileName);
+
+        // Computes the derived data now if nothing has needed it yet
+        ByteBuffer derived = ByteBuffer.allocate(4 * dataset.size() + 4 * dataset.count());
+        derived.asIntBuffer().put(dataset.order()).put(dataset.norms());
+
+        ByteBuffer[] payload = {
+                ByteBuffer.wrap(dataset.pixels()),
+                ByteBuffer.wrap(dataset.labels()),
+                derived
+        };
+
+        CRC32 crc = new CRC32();
+        for (ByteBuffer part : payload) {
+            crc.update(part.duplicate());
+        }
+
+        byte[] steps = pipeline.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER + steps.length);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putLong(images.length()).putLong(images.lastModified());
+        header.putLong(labels.length()).putLong(labels.lastModified());
+        header.putInt(dataset.rows()).putInt(dataset.columns()).putInt(dataset.count());
+        header.putInt(Pipeline.VERSION).putInt(steps.length).put(steps);
+        header.putLong(crc.getValue());
+        header.flip();
+
+        // Write a temporary file and move it into place so that a reader
+        // never sees a partially written snapshot
+        Path target = Path.of(snapshotFileName).toAbsolutePath();
+        Path temporary = Files.createTempFile(target.getParent(), "snapshot", ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (ByteBuffer part : payload) {
+                while (part.hasRemaining()) {
+                    channel.write(part);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+public class SparseQuery {
+
+    // A query image prepared for distances of the form
+    //
+    //    |a - b|^2 = |a|^2 + |b|^2 - 2 a.b
+    //
+    // The training norms |b|^2 come from Dataset.norms (computed once), the
+    // query norm |a|^2 is computed here once per query, and only the non-zero
+    // query pixels (about a fifth of an MNIST digit) take part in the dot
+    // product.  Everything is integer arithmetic, so the distances are exactly
+    // those of DistanceKernel.
+    //
+    // The norms also give a lower bound for free: |a - b| >= | |a| - |b| |,
+    // so a training image whose norm is too far from the query norm cannot
+    // beat the current k-th neighbor and is skipped without a dot product.
+
+    private static final double EPSILON = 1e-6; // slack for rounding in the bound
+
+    private final int[] indexes; // positions of the non-zero query pixels
+    private final int[] values;  // and their values
+    private final int norm;
+    private final double length; // sqrt(norm)
+
+    public SparseQuery(byte[] query) {
+        int used = 0;
+        int norm = 0;
+        int[] indexes = new int[query.length];
+        int[] values = new int[query.length];
+
+        for (int p = 0; p < query.length; p++) {
+            int pixel = query[p] & 0xFF;
+            if (pixel != 0) {
+                indexes[used] = p;
+                values[used] = pixel;
+                norm += pixel * pixel;
+                used++;
+            }
+        }
+
+        this.indexes = Arrays.copyOf(indexes, used);
+        this.values = Arrays.copyOf(values, used);
+        this.norm = norm;
+        this.length = Math.sqrt(norm);
+    }
+
+    public int norm() {
+        return this.norm;
+    }
+
+    public int nonZero() {
+        return this.indexes.length;
+    }
+
+    public int dot(byte[] pixels, int offset) {
+        int sum = 0;
+        for (int j = 0; j < this.indexes.length; j++) {
+            sum += this.values[j] * (pixels[offset + this.indexes[j]] & 0xFF);
+        }
+        return sum;
+    }
+
+    public int distance(Dataset dataset, int index) {
+        return this.norm + dataset.norms()[index] - 2 * this.dot(dataset.pixels(), dataset.offset(index));
+    }
+
+    public void scan(Dataset trainImages, int from, int to, Neighbors neighbors) {
+        // Same contract as Main.scan: offer the samples from ... to - 1
+        byte[] pixels = trainImages.pixels();
+        int[] norms = trainImages.norms();
+        int length = trainImages.size();
+        int computed = 0;
+        int inserts = 0;
+
+        for (int i = from, offset = trainImages.offset(from); i < to; i++, offset += length) {
+            if ((i & Main.INTERRUPT_CHECK) == 0) Main.checkInterrupt();
+            int worst = neighbors.worst();
+            if (worst != Integer.MAX_VALUE) {
+                double gap = this.length - Math.sqrt(norms[i]);
+                if (gap * gap > worst + EPSILON * (worst + 1)) continue;
+            }
+
+            int distance = this.norm + norms[i] - 2 * this.dot(pixels, offset);
+            computed++;
+            if (distance <= worst) {
+                neighbors.insert(distance, i);
+                inserts++;
+            }
+        }
+        Metrics.count(Metrics.DISTANCES, computed);
+        Metrics.count(Metrics.INSERTS, inserts);
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+public class Sweep {
+
+    // Tunes k and the vote weighting in a single pass.  The kMax nearest
+    // training images of every test image are found once (in parallel,
+    // cache-blocked by BatchClassifier).  Since Neighbors keeps them closest
+    // first with ties by index, the first k of them are exactly the k
+    // nearest, so every k <= kMax and every vote scheme can be scored from
+    // that one list.  SUM_RATIO at k = 4 is what Classifier does today.
+    //
+    // Optionally k-fold cross-validation on the training set: fold f is
+    // every image whose index % folds == f, classified against the rest.
+
+    private final int kMax;
+
+    public enum Vote {
+        UNIFORM,          // one vote per neighbor
+        INVERSE,          // 1 / distance
+        INVERSE_SQUARED,  // 1 / distance^2
+        SUM_RATIO;        // sum of the k distances / distance (Main.vote)
+
+        double weight(int distance, double sum) {
+            switch (this) {
+                case UNIFORM:
+                    return 1;
+                case INVERSE:
+                    return 1.0 / distance;
+                case INVERSE_SQUARED:
+                    return 1.0 / ((double) distance * distance);
+                default:
+                    return sum / distance;
+            }
+        }
+    }
+
+    public Sweep(int kMax) {
+        if (kMax <= 0) {
+            throw new IllegalArgumentException("K: " + kMax);
+        }
+        this.kMax = kMax;
+    }
+
+    public Table run(Dataset training, Dataset tests) {
+        if (training.count() < this.kMax) {
+            throw new IllegalArgumentException("Training images: " + training.count());
+        }
+
+        byte[][] queries = new byte[tests.count()][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = Arrays.copyOfRange(tests.pixels(), tests.offset(i), tests.offset(i + 1));
+        }
+        Neighbors[] neighbors = new BatchClassifier(training, this.kMax).nearest(queries);
+
+        Table table = new Table(this.kMax);
+        for (int i = 0; i < neighbors.length; i++) {
+            table.score(neighbors[i].digits(training), neighbors[i].distances(), tests.digit(i));
+        }
+        return table;
+    }
+
+    public Table crossValidate(Dataset training, int folds) {
+        if (folds < 2 || folds > training.count()) {
+            throw new IllegalArgumentException("Folds: " + folds);
+        }
+
+        Table table = new Table(this.kMax);
+        for (int fold = 0; fold < folds; fold++) {
+            int[] inside = new int[(training.count() - fold + folds - 1) / folds];
+            int[] outside = new int[training.count() - inside.length];
+            for (int i = 0, in = 0, out = 0; i < training.count(); i++) {
+                if (i % folds == fold) {
+                    inside[in++] = i;
+                } else {
+                    outside[out++] = i;
+                }
+            }
+            table.add(this.run(training.subset(outside), training.subset(inside)));
+        }
+        return table;
+    }
+
+
+    public static class Table {
+
+        // Correct classifications for every k (1 ... kMax) and vote scheme
+
+        private final int kMax;
+        private final long[][] correct; // [k - 1][vote]
+        private long count;
+
+        Table(int kMax) {
+            this.kMax = kMax;
+            this.correct = new long[kMax][Vote.values().length];
+        }
+
+        void score(int[] digits, int[] distances, int actual) {
+            Vote[] votes = Vote.values();
+            double[][] numbers = new double[votes.length][10];
+            int found = Math.min(this.kMax, digits.length);
+
+            for (int k = 1; k <= found; k++) {
+                // Sum of the first k distances, in the same order as Main.votes
+                double sum = 0;
+                for (int j = 0; j < k; j++) {
+                    sum += distances[j];
+                }
+
+                for (int v = 0; v < votes.length; v++) {
+                    double[] tally = numbers[v];
+                    Arrays.fill(tally, 0);
+                    for (int j = 0; j < k; j++) {
+                        tally[digits[j]] += votes[v].weight(distances[j], sum);
+                    }
+                    if (best(tally) == actual) {
+                        this.correct[k - 1][v]++;
+                    }
+                }
+            }
+            this.count++;
+        }
+
+        private static int best(double[] tally) {
+            // As Main.vote: the first digit with the highest vote
+            double max = Integer.MIN_VALUE;
+            int index = -1;
+            for (int d = 0; d < tally.length; d++) {
+                if (tally[d] > max) {
+                    max = tally[d];
+                    index = d;
+                }
+            }
+            return index;
+        }
+
+        void add(Table other) {
+            for (int k = 0; k < this.kMax; k++) {
+                for (int v = 0; v < Vote.values().length; v++) {
+                    this.correct[k][v] += other.correct[k][v];
+                }
+            }
+            this.count += other.count;
+        }
+
+        public long count() {
+            return this.count;
+        }
+
+        public double accuracy(int k, Vote vote) {
+            if (k < 1 || k > this.kMax) {
+                throw new IllegalArgumentException("K: " + k);
+            }
+            return this.count == 0 ? 0 : 100.0 * this.correct[k - 1][vote.ordinal()] / this.count;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format("Accuracy (%%) over %d images%n%4s", this.count, "k"));
+            for (Vote vote : Vote.values()) {
+                result.append(String.format("%17s", vote.name().toLowerCase()));
+            }
+            result.append(String.format("%n"));
+
+            int bestK = 1;
+            Vote bestVote = Vote.SUM_RATIO;
+            for (int k = 1; k <= this.kMax; k++) {
+                result.append(String.format("%4d", k));
+                for (Vote vote : Vote.values()) {
+                    double accuracy = this.accuracy(k, vote);
+                    result.append(String.format("%17.2f", accuracy));
+                    if (accuracy > this.accuracy(bestK, bestVote)) {
+                        bestK = k;
+                        bestVote = vote;
+                    }
+                }
+                result.append(String.format("%n"));
+            }
+            result.append(String.format("Best: k = %d, %s (%.2f%%)%n", bestK, bestVote.name().toLowerCase(),
+                    this.accuracy(bestK, bestVote)));
+            return result.toString();
+        }
+    }
+}
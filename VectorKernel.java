@@ -0,0 +1,50 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorKernel implements DistanceKernel {
+
+    // SIMD version of Main.distance built on the (incubating) Vector API.
+    // Each step loads a full vector of pixel bytes from the query and the
+    // sample, widens every quarter of it to int lanes (masking off the sign
+    // extension, since pixels are unsigned), and accumulates
+    // the squared differences lane-wise.  Only the last few pixels that do
+    // not fill a vector are handled by the scalar loop.
+
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final int PARTS = BYTES.length() / INTS.length();
+
+    @Override
+    public int distance(byte[] query, byte[] pixels, int offset) {
+        IntVector sums = IntVector.zero(INTS);
+        int bound = BYTES.loopBound(query.length);
+        int i = 0;
+
+        for (; i < bound; i += BYTES.length()) {
+            ByteVector a = ByteVector.fromArray(BYTES, query, i);
+            ByteVector b = ByteVector.fromArray(BYTES, pixels, offset + i);
+
+            for (int part = 0; part < PARTS; part++) {
+                IntVector x = ((IntVector) a.convertShape(VectorOperators.B2I, INTS, part)).and(0xFF);
+                IntVector y = ((IntVector) b.convertShape(VectorOperators.B2I, INTS, part)).and(0xFF);
+                IntVector difference = x.sub(y);
+                sums = sums.add(difference.mul(difference));
+            }
+        }
+
+        int sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            int difference = (query[i] & 0xFF) - (pixels[offset + i] & 0xFF);
+            sum += difference * difference;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return "vector (" + BYTES.vectorBitSize() + " bit)";
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+public class VpTree implements MNIST_GUI.Classifier {
+
+    // An exact nearest neighbor index (vantage point tree) over a Dataset.
+    //
+    // Every inner node picks one training image as its vantage point and
+    // splits the images below it at the median Euclidean distance to that
+    // point: the nearer half goes inside, the farther half outside.  By the
+    // triangle inequality a query at distance d from the vantage point is at
+    // least d - innerMax from everything inside and outerMin - d from
+    // everything outside, so whole subtrees farther than the current k-th
+    // neighbor can be skipped.  Nothing that could be one of the k nearest is
+    // ever skipped, so the result is exactly that of Main.smallest.
+
+    private static final int LEAF = 16;          // images per leaf bucket
+    private static final int PARALLEL = 4096;    // build subtrees this big in parallel
+    private static final double EPSILON = 1e-6;  // slack for rounding in the bounds
+
+    private final Dataset dataset;
+    private final int size;
+    private final Node root;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder visits = new LongAdder();
+    private final LongAdder distances = new LongAdder();
+
+    private static class Node {
+        int vantage;        // index of the vantage point (inner nodes)
+        double innerMax;    // largest distance from the vantage point inside
+        double outerMin;    // smallest distance from the vantage point outside
+        Node inside;
+        Node outside;
+        int[] bucket;       // indexes of the images (leaves only)
+    }
+
+    public VpTree(Dataset dataset, int size) {
+        this.dataset = dataset;
+        this.size = size;
+
+        int[] indexes = new int[dataset.count()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        this.root = ForkJoinPool.commonPool().invoke(new Build(indexes, 0, indexes.length));
+    }
+
+
+    private byte[] sample(int index) {
+        return Arrays.copyOfRange(this.dataset.pixels(), this.dataset.offset(index), this.dataset.offset(index + 1));
+    }
+
+    private class Build extends RecursiveTask<Node> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] indexes;
+        private final int from;
+        private final int to;
+
+        Build(int[] indexes, int from, int to) {
+            this.indexes = indexes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Node compute() {
+            Node node = new Node();
+            int count = this.to - this.from;
+
+            if (count <= LEAF) {
+                node.bucket = Arrays.copyOfRange(this.indexes, this.from, this.to);
+                return node;
+            }
+
+            // Random vantage point (seeded by the range so the tree is reproducible)
+            SplittableRandom random = new SplittableRandom(31L * this.from + this.to);
+            int pick = this.from + random.nextInt(count);
+            node.vantage = this.indexes[pick];
+            this.indexes[pick] = this.indexes[this.from];
+            this.indexes[this.from] = node.vantage;
+
+            // Sort the others by distance from the vantage point and split at the median
+            byte[] vantage = sample(node.vantage);
+            long[] keys = new long[count - 1];
+            for (int i = 0; i < keys.length; i++) {
+                int index = this.indexes[this.from + 1 + i];
+                long distance = Main.kernel.distance(vantage, dataset.pixels(), dataset.offset(index));
+                keys[i] = (distance << 32) | index;
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < keys.length; i++) {
+                this.indexes[this.from + 1 + i] = (int) keys[i];
+            }
+
+            int middle = keys.length / 2;
+            node.innerMax = Math.sqrt(keys[middle - 1] >>> 32);
+            node.outerMin = Math.sqrt(keys[middle] >>> 32);
+
+            Build inside = new Build(this.indexes, this.from + 1, this.from + 1 + middle);
+            Build outside = new Build(this.indexes, this.from + 1 + middle, this.to);
+            if (count > PARALLEL) {
+                inside.fork();
+                node.outside = outside.compute();
+                node.inside = inside.join();
+            } else {
+                node.inside = inside.compute();
+                node.outside = outside.compute();
+            }
+            return node;
+        }
+    }
+
+
+    public Neighbors nearest(Image image) {
+        byte[] query = image.flatten();
+        Neighbors neighbors = new Neighbors(this.size);
+        long[] counters = new long[2]; // visits, distances
+
+        this.search(this.root, query, neighbors, counters);
+
+        this.queries.increment();
+        this.visits.add(counters[0]);
+        this.distances.add(counters[1]);
+        return neighbors;
+    }
+
+    private void search(Node node, byte[] query, Neighbors neighbors, long[] counters) {
+        byte[] pixels = this.dataset.pixels();
+        counters[0]++;
+
+        if (node.bucket != null) {
+            for (int index : node.bucket) {
+                neighbors.insert(Main.kernel.distance(query, pixels, this.dataset.offset(index)), index);
+            }
+            counters[1] += node.bucket.length;
+            return;
+        }
+
+        int squared = Main.kernel.distance(query, pixels, this.dataset.offset(node.vantage));
+        neighbors.insert(squared, node.vantage);
+        counters[1]++;
+
+        double distance = Math.sqrt(squared);
+        boolean nearSide = distance <= (node.innerMax + node.outerMin) / 2;
+        Node first = nearSide ? node.inside : node.outside;
+        Node second = nearSide ? node.outside : node.inside;
+
+        if (!this.pruned(first, node, distance, neighbors)) {
+            this.search(first, query, neighbors, counters);
+        }
+        if (!this.pruned(second, node, distance, neighbors)) {
+            this.search(second, query, neighbors, counters);
+        }
+    }
+
+    private boolean pruned(Node child, Node parent, double distance, Neighbors neighbors) {
+        // Lower bound on the distance from the query to anything in child
+        int worst = neighbors.worst();
+        if (worst == Integer.MAX_VALUE) return false;
+
+        double bound = (child == parent.inside) ? distance - parent.innerMax : parent.outerMin - distance;
+        return bound > Math.sqrt(worst) + EPSILON;
+    }
+
+
+    @Override
+    public int classify(Image image) {
+        return Main.vote(this.nearest(image), this.dataset);
+    }
+
+    public double visitsPerQuery() {
+        long queries = this.queries.sum();
+        return queries == 0 ? 0 : (double) this.visits.sum() / queries;
+    }
+
+    public double distancesPerQuery() {
+        // A linear scan computes dataset.count() distances per query
+        long queries = this.queries.sum();
+        return queries == 0 ? 0 : (double) this.distances.sum() / queries;
+    }
+}
@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import mnist.BufferedReader;
+import mnist.Dataset;
+import mnist.Image;
+import mnist.Main;
+import mnist.MappedReader;
+
+public class BenchmarkData {
+
+    // The data files used by the benchmarks.  The real MNIST files are used
+    // when they are found in the directory given by -Dmnist.dir (default: the
+    // working directory); otherwise IDX files of the same shape (60,000
+    // labelled 28 x 28 images, mostly blank like MNIST) are generated once
+    // from a fixed seed, so that runs stay comparable across commits.
+
+    public static final int COUNT = 60000;
+    public static final int ROWS = 28;
+    public static final int COLUMNS = 28;
+
+    public static synchronized String[] training() throws IOException {
+        File directory = new File(System.getProperty("mnist.dir", "."));
+        File images = new File(directory, Main.TRAIN_IMAGES);
+        File labels = new File(directory, Main.TRAIN_LABELS);
+
+        if (!images.isFile() || !labels.isFile()) {
+            directory = new File(System.getProperty("java.io.tmpdir"), "mnist-benchmark");
+            images = new File(directory, Main.TRAIN_IMAGES);
+            labels = new File(directory, Main.TRAIN_LABELS);
+            if (!images.isFile() || !labels.isFile()) {
+                directory.mkdirs();
+                generate(images, labels);
+            }
+        }
+        return new String[] { images.getPath(), labels.getPath() };
+    }
+
+    private static void generate(File imageFile, File labelFile) throws IOException {
+        SplittableRandom random = new SplittableRandom(2051);
+        try (DataOutputStream images = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(imageFile)));
+             DataOutputStream labels = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(labelFile)))) {
+            images.writeInt(2051);
+            images.writeInt(COUNT);
+            images.writeInt(ROWS);
+            images.writeInt(COLUMNS);
+            labels.writeInt(2049);
+            labels.writeInt(COUNT);
+
+            for (int i = 0; i < COUNT; i++) {
+                labels.writeByte(random.nextInt(10));
+                for (int p = 0; p < ROWS * COLUMNS; p++) {
+                    // About 20% ink, as in MNIST
+                    images.writeByte(random.nextInt(5) == 0 ? random.nextInt(1, 256) : 0);
+                }
+            }
+        }
+    }
+
+    public static Dataset dataset() throws IOException {
+        String[] files = training();
+        return new MappedReader(files[0], files[1]).read();
+    }
+
+    public static Image[] images(int count) throws IOException {
+        String[] files = training();
+        return new BufferedReader(files[0], files[1]).read(count);
+    }
+
+    public static Image query(Image[] images) {
+        // The last image, held out of the indexed set (see indexed): a query
+        // that is itself indexed is at distance 0 from its nearest neighbor,
+        // so its vote for k = 1 is 0 / 0
+        return images[images.length - 1];
+    }
+
+    public static Image[] indexed(Image[] images) {
+        // All images but the query
+        return Arrays.copyOf(images, images.length - 1);
+    }
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mnist.DistanceKernel;
+import mnist.Image;
+import mnist.Main;
+import mnist.ScalarKernel;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DistanceBenchmark {
+
+    // One distance between two 28 x 28 images, through each implementation
+
+    private Image first;
+    private Image second;
+    private byte[] query;
+    private byte[] pixels;
+    private DistanceKernel scalar;
+    private DistanceKernel selected;
+
+    @Setup
+    public void setup() throws IOException {
+        Image[] images = BenchmarkData.images(2);
+        this.first = images[0];
+        this.second = images[1];
+        this.query = this.first.flatten();
+        this.pixels = this.second.flatten();
+        this.scalar = new ScalarKernel();
+        this.selected = DistanceKernel.select();
+    }
+
+    @Benchmark
+    public int images() {
+        return Main.distance(this.first, this.second);
+    }
+
+    @Benchmark
+    public int scalarKernel() {
+        return this.scalar.distance(this.query, this.pixels, 0);
+    }
+
+    @Benchmark
+    public int selectedKernel() {
+        return this.selected.distance(this.query, this.pixels, 0);
+    }
+}
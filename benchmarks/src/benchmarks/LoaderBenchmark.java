@@ -0,0 +1,51 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mnist.BufferedReader;
+import mnist.Dataset;
+import mnist.Image;
+import mnist.MappedReader;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LoaderBenchmark {
+
+    // Loading the full 60,000 image training set from its IDX files
+
+    private String images;
+    private String labels;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] files = BenchmarkData.training();
+        this.images = files[0];
+        this.labels = files[1];
+    }
+
+    @Benchmark
+    public Image[] bufferedReader() throws IOException {
+        return new BufferedReader(this.images, this.labels).read();
+    }
+
+    @Benchmark
+    public Dataset mappedReader() throws IOException {
+        return new MappedReader(this.images, this.labels).read();
+    }
+}
@@ -0,0 +1,139 @@
+package benchmarks;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mnist.Image;
+import mnist.MNIST_GUI;
+import mnist.Pipeline;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PreprocessBenchmark {
+
+    // Preprocessing of a query: the GUI turning its 560 x 560 drawing of a
+    // "7" into a 28 x 28 image (box filter, against the old AWT scaling +
+    // brighten + center chain as the reference), and the pipelines applied
+    // to every query (and, once, to every training image)
+
+    @State(Scope.Thread)
+    public static class Drawing {
+
+        BufferedImage drawing;
+        byte[] pixels;
+        byte[] scratch;
+        int[] sums;
+
+        @Setup
+        public void setup() {
+            // Drawn the way the GUI draws: black ink on white
+            this.drawing = new BufferedImage(560, 560, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D g = this.drawing.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, 560, 560);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(Color.BLACK);
+            g.setStroke(new BasicStroke(35, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            g.drawLine(150, 120, 420, 120);
+            g.drawLine(420, 120, 250, 460);
+            g.dispose();
+
+            this.pixels = new byte[28 * 28];
+            this.scratch = new byte[28 * 28];
+            this.sums = new int[28];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Steps {
+
+        @Param({ "normalize", "center", "normalize,center", "deskew", "crop,rescale(20),normalize,center,deskew" })
+        public String steps;
+
+        Pipeline pipeline;
+        Image image;
+        byte[] pixels;
+        byte[] work;
+
+        @Setup
+        public void setup() {
+            // A 28 x 28 "7", drawn at 1/20 of the GUI canvas
+            BufferedImage drawing = new BufferedImage(28, 28, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D g = drawing.createGraphics();
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, 28, 28);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(Color.WHITE);
+            g.setStroke(new BasicStroke(1.75f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            g.drawLine(7, 6, 21, 6);
+            g.drawLine(21, 6, 12, 23);
+            g.dispose();
+
+            // Ink is 255, as in MNIST; dimmed so that normalize has work to do
+            this.image = new Image(28, 28, Image.UNKNOWN);
+            for (int row = 0; row < 28; row++) {
+                for (int col = 0; col < 28; col++) {
+                    this.image.set(row, col, drawing.getRaster().getSample(col, row, 0) * 3 / 4);
+                }
+            }
+            this.pipeline = Pipeline.parse(this.steps);
+            this.pixels = this.image.flatten();
+            this.work = new byte[this.pixels.length];
+        }
+    }
+
+    @Benchmark
+    public byte[] downsample(Drawing state) {
+        // The box filter on its own
+        MNIST_GUI.downsample(state.drawing, state.pixels, 28, 28, state.sums);
+        return state.pixels;
+    }
+
+    @Benchmark
+    public byte[] gui(Drawing state) {
+        // What DrawingPanel.getImage does now: box filter, then the default
+        // pipeline in place
+        MNIST_GUI.downsample(state.drawing, state.pixels, 28, 28, state.sums);
+        MNIST_GUI.DEFAULT.apply(state.pixels, 28, 28, state.scratch);
+        return state.pixels;
+    }
+
+    @Benchmark
+    public Image legacy(Drawing state) {
+        // What DrawingPanel.getImage did before the box filter (reference)
+        return mnist.Benchmark.legacyImage(state.drawing, 28, 28);
+    }
+
+    @Benchmark
+    public byte[] pixels(Steps state) {
+        // In place on a flat array, as for the training set
+        System.arraycopy(state.pixels, 0, state.work, 0, state.pixels.length);
+        state.pipeline.apply(state.work, 28, 28);
+        return state.work;
+    }
+
+    @Benchmark
+    public Image image(Steps state) {
+        // A processed copy of an Image, as for a query
+        return state.pipeline.apply(state.image);
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mnist.Dataset;
+import mnist.Image;
+import mnist.Main;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules=jdk.incubator.vector", "-Xmx2g" })
+public class SelectionBenchmark {
+
+    // One full KNN query against the training images (see NearestBenchmark
+    // for the single nearest neighbor, which does not depend on k)
+
+    @Param({ "1", "4", "10" })
+    public int k;
+
+    private Image query;
+    private Image[] images;
+    private Dataset dataset;
+
+    @Setup
+    public void setup() throws IOException {
+        Image[] images = BenchmarkData.images(BenchmarkData.COUNT);
+        this.query = BenchmarkData.query(images);
+        this.images = BenchmarkData.indexed(images);
+        this.dataset = new Dataset(this.images);
+    }
+
+    @Benchmark
+    public int smallestImages() {
+        return Main.smallest(this.query, this.images, this.k);
+    }
+
+    @Benchmark
+    public int smallestDataset() {
+        return Main.smallest(this.query, this.dataset, this.k);
+    }
+}